@@ -0,0 +1,240 @@
+package com.thingworx.resources.parsley;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+
+// group-by summaries of a CSV file computed while it is tokenized, so only one
+// accumulator per group is ever held and no row is converted or kept. Groups come
+// out in the order they were first seen.
+//
+// Aggregates are written count, count(field), sum(field), min(field),
+// max(field), avg(field), first(field) or last(field), optionally followed by
+// "as name". Empty values are left out of everything except count. min and max
+// compare as numbers while every value of the field is one, and as text otherwise
+final class CSVAggregator {
+
+	static final String[] FUNCTIONS = { "count", "sum", "min", "max", "avg", "first", "last" };
+
+	static final class Aggregate {
+		final String function;
+		// null for count of rows
+		final String field;
+		final String name;
+		int column = -1;
+		// min and max of a field with text in it compare as text
+		boolean numeric = true;
+
+		Aggregate(String function, String field, String name) {
+			this.function = function;
+			this.field = field;
+			this.name = name;
+		}
+
+		// the values are numbers: count, sum, avg, and min/max while numeric
+		boolean isNumber() {
+			return function.equals("count") || function.equals("sum") || function.equals("avg")
+					|| ((function.equals("min") || function.equals("max")) && numeric);
+		}
+	}
+
+	private static final class Group {
+		final String[] key;
+		long rows;
+		final long[] count;
+		final double[] sum;
+		final double[] minNumber;
+		final double[] maxNumber;
+		final String[] minText;
+		final String[] maxText;
+		final String[] first;
+		final String[] last;
+
+		Group(String[] key, int aggregates) {
+			this.key = key;
+			count = new long[aggregates];
+			sum = new double[aggregates];
+			minNumber = new double[aggregates];
+			maxNumber = new double[aggregates];
+			minText = new String[aggregates];
+			maxText = new String[aggregates];
+			first = new String[aggregates];
+			last = new String[aggregates];
+		}
+	}
+
+	private final int[] groupColumns;
+	private final Aggregate[] aggregates;
+	private final LinkedHashMap<String, Group> groups = new LinkedHashMap<String, Group>();
+
+	CSVAggregator(int[] groupColumns, Aggregate[] aggregates) {
+		this.groupColumns = groupColumns;
+		this.aggregates = aggregates;
+	}
+
+	// comma separated aggregates, see above
+	static Aggregate[] parse(String aggregates) throws Exception {
+		ArrayList<Aggregate> parsed = new ArrayList<Aggregate>();
+		for (String item : aggregates.split(",")) {
+			String text = item.trim();
+			if (text.isEmpty()) {
+				continue;
+			}
+			String name = null;
+			int as = text.toLowerCase().lastIndexOf(" as ");
+			if (as > 0) {
+				name = text.substring(as + 4).trim();
+				text = text.substring(0, as).trim();
+			}
+			String function = text;
+			String field = null;
+			int open = text.indexOf('(');
+			if (open > 0) {
+				if (!text.endsWith(")")) {
+					throw invalid(item);
+				}
+				function = text.substring(0, open).trim();
+				field = text.substring(open + 1, text.length() - 1).trim();
+				if (field.isEmpty() || field.equals("*")) {
+					field = null;
+				}
+			}
+			function = function.toLowerCase();
+			boolean known = false;
+			for (String f : FUNCTIONS) {
+				known |= f.equals(function);
+			}
+			if (!known || (field == null && !function.equals("count"))) {
+				throw invalid(item);
+			}
+			if (name == null || name.isEmpty()) {
+				name = field == null ? function : function + "_" + field;
+			}
+			parsed.add(new Aggregate(function, field, name));
+		}
+		if (parsed.isEmpty()) {
+			throw new InvalidRequestException("At least one aggregate must be specified",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		return parsed.toArray(new Aggregate[parsed.size()]);
+	}
+
+	private static InvalidRequestException invalid(String aggregate) {
+		return new InvalidRequestException("Invalid aggregate [" + aggregate.trim()
+				+ "] - expected count, count(field) or one of sum, min, max, avg, first, last of a field",
+				RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+	}
+
+	void add(List<String> values, int rowNumber) throws Exception {
+		Group group = groupOf(values);
+		group.rows++;
+		for (int a = 0; a < aggregates.length; a++) {
+			Aggregate aggregate = aggregates[a];
+			if (aggregate.field == null) {
+				continue;
+			}
+			String value = aggregate.column < values.size() ? values.get(aggregate.column) : null;
+			if (value == null || value.isEmpty()) {
+				continue;
+			}
+			boolean isNumber = TypeClassifier.isDecimal(value);
+			String function = aggregate.function;
+			if ((function.equals("sum") || function.equals("avg")) && !isNumber) {
+				throw new InvalidRequestException("Error aggregating " + aggregate.name + " - " + value
+						+ " is not a number at row " + rowNumber, RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+			}
+			double number = isNumber ? Double.parseDouble(value) : 0;
+			boolean isFirst = group.count[a] == 0;
+			group.count[a]++;
+			if (function.equals("sum") || function.equals("avg")) {
+				group.sum[a] += number;
+			} else if (function.equals("min") || function.equals("max")) {
+				aggregate.numeric &= isNumber;
+				if (isFirst || number < group.minNumber[a]) {
+					group.minNumber[a] = number;
+				}
+				if (isFirst || number > group.maxNumber[a]) {
+					group.maxNumber[a] = number;
+				}
+				if (isFirst || value.compareTo(group.minText[a]) < 0) {
+					group.minText[a] = value;
+				}
+				if (isFirst || value.compareTo(group.maxText[a]) > 0) {
+					group.maxText[a] = value;
+				}
+			} else if (function.equals("first")) {
+				if (isFirst) {
+					group.first[a] = value;
+				}
+			} else if (function.equals("last")) {
+				group.last[a] = value;
+			}
+		}
+	}
+
+	private Group groupOf(List<String> values) {
+		String[] key = new String[groupColumns.length];
+		StringBuilder joined = new StringBuilder();
+		for (int i = 0; i < groupColumns.length; i++) {
+			int column = groupColumns[i];
+			key[i] = column < values.size() ? values.get(column) : null;
+			if (key[i] != null) {
+				joined.append(key[i]);
+			}
+			// the separator can't appear in a value, \u0000 marks a missing one
+			joined.append(key[i] == null ? '\u0000' : '\u0001');
+		}
+		String lookup = joined.toString();
+		Group group = groups.get(lookup);
+		if (group == null) {
+			group = new Group(key, aggregates.length);
+			groups.put(lookup, group);
+		}
+		return group;
+	}
+
+	int getGroupCount() {
+		return groups.size();
+	}
+
+	// one row per group: the group-by values as text, then each aggregate as a
+	// Double or Long when Aggregate.isNumber and as text otherwise. null where a
+	// group had no values
+	List<Object[]> results() {
+		ArrayList<Object[]> rows = new ArrayList<Object[]>(groups.size());
+		for (Map.Entry<String, Group> entry : groups.entrySet()) {
+			Group group = entry.getValue();
+			Object[] row = new Object[groupColumns.length + aggregates.length];
+			System.arraycopy(group.key, 0, row, 0, groupColumns.length);
+			for (int a = 0; a < aggregates.length; a++) {
+				Aggregate aggregate = aggregates[a];
+				String function = aggregate.function;
+				Object value = null;
+				if (function.equals("count")) {
+					value = aggregate.field == null ? group.rows : group.count[a];
+				} else if (group.count[a] > 0) {
+					if (function.equals("sum")) {
+						value = group.sum[a];
+					} else if (function.equals("avg")) {
+						value = group.sum[a] / group.count[a];
+					} else if (function.equals("min")) {
+						value = aggregate.numeric ? (Object) group.minNumber[a] : group.minText[a];
+					} else if (function.equals("max")) {
+						value = aggregate.numeric ? (Object) group.maxNumber[a] : group.maxText[a];
+					} else if (function.equals("first")) {
+						value = group.first[a];
+					} else {
+						value = group.last[a];
+					}
+				}
+				row[groupColumns.length + a] = value;
+			}
+			rows.add(row);
+		}
+		return rows;
+	}
+}
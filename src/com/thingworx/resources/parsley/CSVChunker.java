@@ -0,0 +1,179 @@
+package com.thingworx.resources.parsley;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// splits a CSV file into chunks that each start at the beginning of a record, so
+// the chunks can be tokenized independently. The file is scanned as raw bytes,
+// which only works when the quote and line ending characters are single bytes
+// that can't show up inside a multi-byte character
+final class CSVChunker {
+
+	// how much of the file is mapped at a time while looking for record boundaries
+	private static final long SCAN_WINDOW = 256L * 1024 * 1024;
+
+	static final class Chunk {
+		final long start;
+		final long end;
+		// number of records in the file before this chunk
+		final int firstRow;
+
+		Chunk(long start, long end, int firstRow) {
+			this.start = start;
+			this.end = end;
+			this.firstRow = firstRow;
+		}
+	}
+
+	private CSVChunker() {
+	}
+
+	static boolean canSplit(Charset charset, char fieldChar, char quoteChar) {
+		if (fieldChar > 127 || quoteChar > 127) {
+			return false;
+		}
+		byte[] encoded = new String(new char[] { fieldChar, quoteChar, '\n', '\r' }).getBytes(charset);
+		return Arrays.equals(encoded, new byte[] { (byte) fieldChar, (byte) quoteChar, '\n', '\r' });
+	}
+
+	interface RecordVisitor {
+		// called at the start of every record after the first, row is the record's number
+		void recordStart(long position, int row) throws IOException;
+	}
+
+	// walks the record boundaries of the file and returns the number of records.
+	// Quotes toggle in and out of a quoted value; a doubled quote toggles twice so
+	// it never changes whether a line ending is inside a value or not
+	static int scan(FileChannel channel, char quoteChar, RecordVisitor visitor) throws IOException {
+		long size = channel.size();
+		byte quote = (byte) quoteChar;
+
+		int rows = 0;
+		// true while there are bytes after the last line ending
+		boolean open = false;
+		boolean inQuotes = false;
+		boolean atRowStart = false;
+		byte lineEnding = 0;
+
+		for (long base = 0; base < size; base += SCAN_WINDOW) {
+			long length = Math.min(SCAN_WINDOW, size - base);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+			for (int i = 0; i < length; i++) {
+				byte b = window.get(i);
+				if (lineEnding != 0) {
+					// \r\n and \n\r are a single line ending
+					boolean pair = (lineEnding == '\n' && b == '\r') || (lineEnding == '\r' && b == '\n');
+					lineEnding = 0;
+					atRowStart = true;
+					if (pair) {
+						continue;
+					}
+				}
+				if (atRowStart) {
+					atRowStart = false;
+					visitor.recordStart(base + i, rows);
+				}
+				open = true;
+				if (b == quote) {
+					inQuotes = !inQuotes;
+				} else if (!inQuotes && (b == '\n' || b == '\r')) {
+					rows++;
+					lineEnding = b;
+					open = false;
+				}
+			}
+		}
+		// whatever follows the last line ending is one more record
+		if (open) {
+			rows++;
+		}
+		return rows;
+	}
+
+	// the position after the last line ending in the file that isn't inside a quoted
+	// value, or start if there is none. start has to be at the beginning of a record
+	static long completeEnd(FileChannel channel, long start, char quoteChar) throws IOException {
+		long size = channel.size();
+		byte quote = (byte) quoteChar;
+		long end = start;
+		boolean inQuotes = false;
+		for (long base = start; base < size; base += SCAN_WINDOW) {
+			long length = Math.min(SCAN_WINDOW, size - base);
+			MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, base, length);
+			for (int i = 0; i < length; i++) {
+				byte b = window.get(i);
+				if (b == quote) {
+					inQuotes = !inQuotes;
+				} else if (!inQuotes && (b == '\n' || b == '\r')) {
+					end = base + i + 1;
+				}
+			}
+		}
+		return end;
+	}
+
+	static ArrayList<Chunk> split(FileChannel channel, char quoteChar, final long chunkSize) throws IOException {
+		final ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+		final long[] chunkStart = { 0 };
+		final int[] chunkFirstRow = { 0 };
+		scan(channel, quoteChar, new RecordVisitor() {
+			@Override
+			public void recordStart(long position, int row) {
+				if (position - chunkStart[0] >= chunkSize) {
+					chunks.add(new Chunk(chunkStart[0], position, chunkFirstRow[0]));
+					chunkStart[0] = position;
+					chunkFirstRow[0] = row;
+				}
+			}
+		});
+		long size = channel.size();
+		if (size > chunkStart[0]) {
+			chunks.add(new Chunk(chunkStart[0], size, chunkFirstRow[0]));
+		}
+		return chunks;
+	}
+
+	static CSVTokenizer tokenize(FileChannel channel, Chunk chunk, Charset charset, char fieldChar, char quoteChar)
+			throws IOException {
+		MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start, chunk.end - chunk.start);
+		CharBuffer chars = charset.decode(bytes);
+		return new CSVTokenizer(chars.array(), chars.arrayOffset() + chars.position(), chars.remaining(), fieldChar,
+				quoteChar);
+	}
+
+	// the chunk as characters decoded a block at a time, for a caller that goes over
+	// it once and shouldn't hold all of it in memory the way tokenize does
+	static Reader reader(final FileChannel channel, final Chunk chunk, Charset charset) {
+		InputStream bytes = new InputStream() {
+			private long position = chunk.start;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (position >= chunk.end) {
+					return -1;
+				}
+				int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, chunk.end - position)), position);
+				if (read > 0) {
+					position += read;
+				}
+				return read;
+			}
+		};
+		return new InputStreamReader(bytes, charset);
+	}
+}
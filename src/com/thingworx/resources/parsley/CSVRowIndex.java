@@ -0,0 +1,51 @@
+package com.thingworx.resources.parsley;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+// sparse index of record start offsets for one version of a CSV file, so a page
+// can seek close to its first record instead of reading from the top
+final class CSVRowIndex {
+
+	// one offset is kept for every STRIDE records
+	static final int STRIDE = 512;
+
+	final char quoteChar;
+	final int rowCount;
+	private final long[] offsets;
+
+	private CSVRowIndex(char quoteChar, int rowCount, long[] offsets) {
+		this.quoteChar = quoteChar;
+		this.rowCount = rowCount;
+		this.offsets = offsets;
+	}
+
+	static CSVRowIndex build(FileChannel channel, char quoteChar) throws IOException {
+		final long[][] offsets = { new long[64] };
+		int rowCount = CSVChunker.scan(channel, quoteChar, new CSVChunker.RecordVisitor() {
+			@Override
+			public void recordStart(long position, int row) {
+				if (row % STRIDE == 0) {
+					int slot = row / STRIDE;
+					if (slot == offsets[0].length) {
+						offsets[0] = Arrays.copyOf(offsets[0], slot * 2);
+					}
+					offsets[0][slot] = position;
+				}
+			}
+		});
+		int slots = (Math.max(rowCount, 1) - 1) / STRIDE + 1;
+		return new CSVRowIndex(quoteChar, rowCount, Arrays.copyOf(offsets[0], slots));
+	}
+
+	// the closest indexed record at or before row
+	int indexedRow(int row) {
+		int slot = Math.min(row / STRIDE, offsets.length - 1);
+		return slot * STRIDE;
+	}
+
+	long offsetOf(int indexedRow) {
+		return offsets[indexedRow / STRIDE];
+	}
+}
@@ -0,0 +1,75 @@
+package com.thingworx.resources.parsley;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.types.BaseTypes;
+
+// how far ParseCSVIncremental or ParseNDJSONIncremental has read an append-only
+// file. Along with the offset it keeps a few bytes from the start of the file and
+// from just before the offset; if either has changed, or the file is now shorter
+// than the offset, the file was truncated or rotated and the next call starts
+// again from the top. Callers lock the tail while they read from the offset and
+// commit
+final class CSVTail {
+
+	// bytes compared at the start of the file and before the offset
+	private static final int FINGERPRINT = 64;
+
+	// also read without the lock, to estimate the admission of the next call
+	volatile long offset;
+	// records before the offset, the header included
+	int rowNumber;
+	// inferred fields and their types so far, null while nothing has been read or
+	// when the caller passes a data shape. NDJSON keeps its types in the shape
+	DataShapeDefinition shape;
+	BaseTypes[] types;
+	// set when the last line ending read was a \r, a \n at the offset belongs to it
+	boolean endsWithCR;
+
+	private byte[] head = new byte[0];
+	private byte[] tail = new byte[0];
+
+	void reset() {
+		offset = 0;
+		rowNumber = 0;
+		shape = null;
+		types = null;
+		endsWithCR = false;
+		head = new byte[0];
+		tail = new byte[0];
+	}
+
+	// false once the file no longer continues from what was read before
+	boolean isCurrent(FileChannel channel) throws IOException {
+		if (offset == 0) {
+			return true;
+		}
+		if (channel.size() < offset) {
+			return false;
+		}
+		return Arrays.equals(head, read(channel, 0, head.length))
+				&& Arrays.equals(tail, read(channel, offset - tail.length, tail.length));
+	}
+
+	void commit(FileChannel channel, long end, int rows) throws IOException {
+		offset = end;
+		rowNumber += rows;
+		head = read(channel, 0, (int) Math.min(FINGERPRINT, end));
+		tail = read(channel, end - Math.min(FINGERPRINT, end), (int) Math.min(FINGERPRINT, end));
+		endsWithCR = end > 0 && tail[tail.length - 1] == '\r';
+	}
+
+	private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				break;
+			}
+		}
+		return buffer.array();
+	}
+}
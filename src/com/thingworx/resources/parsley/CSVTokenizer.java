@@ -0,0 +1,265 @@
+package com.thingworx.resources.parsley;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// splits CSV input into rows of field values. The input is read in large blocks
+// and field values are sliced straight out of the block; only quoted values
+// containing escaped quotes (or quotes in the middle of a value) are copied
+// through a StringBuilder. Columns that aren't wanted are scanned past without
+// creating a value at all
+final class CSVTokenizer {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	// how the last field read was terminated
+	private static final int FIELD = 0;
+	private static final int ROW = 1;
+	private static final int END = 2;
+
+	private final Reader reader;
+	private final char fieldChar;
+	private final char quoteChar;
+
+	private char[] buffer;
+	private int position;
+	private int limit;
+	private boolean eof;
+	private int terminator;
+	// set when the input ended, whether the last field had no characters
+	private boolean emptyAtEnd;
+
+	private final StringBuilder copy = new StringBuilder();
+
+	CSVTokenizer(Reader reader, char fieldChar, char quoteChar) {
+		this.reader = reader;
+		this.fieldChar = fieldChar;
+		this.quoteChar = quoteChar;
+		this.buffer = new char[BLOCK_SIZE];
+	}
+
+	// tokenizes chars that are already in memory, e.g. a decoded chunk of a file
+	CSVTokenizer(char[] chars, int offset, int length, char fieldChar, char quoteChar) {
+		this.reader = null;
+		this.fieldChar = fieldChar;
+		this.quoteChar = quoteChar;
+		this.buffer = chars;
+		this.position = offset;
+		this.limit = offset + length;
+		this.eof = true;
+	}
+
+	// reads the next row into fieldValues, returns false once the input is exhausted
+	boolean readRow(ArrayList<String> fieldValues) throws Exception {
+		return readRow(fieldValues, null);
+	}
+
+	// columns at or past the end of keep, or false in it, are added as null
+	boolean readRow(ArrayList<String> fieldValues, boolean[] keep) throws Exception {
+		fieldValues.clear();
+		if (position == limit && fill(position) == -1) {
+			return false;
+		}
+		while (true) {
+			int column = fieldValues.size();
+			String value = readField(keep == null || (column < keep.length && keep[column]));
+			if (terminator == END) {
+				// a trailing empty value without a newline is not a field
+				if (!emptyAtEnd) {
+					fieldValues.add(value);
+				}
+				return fieldValues.size() > 0;
+			}
+			fieldValues.add(value);
+			if (terminator == ROW) {
+				return true;
+			}
+		}
+	}
+
+	private String readField(boolean wanted) throws Exception {
+		char[] buf = buffer;
+		int start = position;
+		int i = start;
+		while (true) {
+			int end = limit;
+			while (i < end) {
+				char c = buf[i];
+				if (c == fieldChar || c == quoteChar || c == '\n' || c == '\r') {
+					break;
+				}
+				i++;
+			}
+			if (i < limit) {
+				break;
+			}
+			// ran off the end of the block in the middle of a value
+			int read = fill(start);
+			i -= start;
+			start = 0;
+			buf = buffer;
+			if (read == -1) {
+				position = i;
+				terminator = END;
+				emptyAtEnd = i == 0;
+				return wanted ? new String(buf, 0, i) : null;
+			}
+		}
+
+		char c = buf[i];
+		if (c == quoteChar) {
+			if (i == start) {
+				return readQuotedField(start, wanted);
+			}
+			// quote in the middle of a value, keep what we have and copy the rest
+			copy.setLength(0);
+			copy.append(buf, start, i - start);
+			position = i + 1;
+			return copySlow(true, wanted);
+		}
+		String value = !wanted ? null : i == start ? "" : new String(buf, start, i - start);
+		endField(i);
+		return value;
+	}
+
+	// start is the opening quote; a quoted value with no escaped quotes is sliced
+	// out of the buffer without copying
+	private String readQuotedField(int start, boolean wanted) throws Exception {
+		int i = start + 1;
+		while (true) {
+			char[] buf = buffer;
+			int end = limit;
+			while (i < end && buf[i] != quoteChar) {
+				i++;
+			}
+			if (i < end && i + 1 < end) {
+				break;
+			}
+			// need the closing quote and the character after it in the buffer
+			int read = fill(start);
+			i -= start;
+			start = 0;
+			if (read == -1) {
+				if (i < limit) {
+					// closing quote is the last character of the input
+					position = limit;
+					terminator = END;
+					emptyAtEnd = i == start + 1;
+					return wanted ? new String(buffer, start + 1, i - start - 1) : null;
+				}
+				throw new Exception("Unexpected end of file while parsing CSV input");
+			}
+		}
+
+		char next = buffer[i + 1];
+		if (next == fieldChar || next == '\n' || next == '\r') {
+			String value = wanted ? new String(buffer, start + 1, i - start - 1) : null;
+			endField(i + 1);
+			return value;
+		}
+
+		// escaped quote or text after the closing quote, copy from here on
+		copy.setLength(0);
+		copy.append(buffer, start + 1, i - start - 1);
+		if (next == quoteChar) {
+			copy.append(quoteChar);
+			position = i + 2;
+			return copySlow(true, wanted);
+		}
+		position = i + 1;
+		return copySlow(false, wanted);
+	}
+
+	// character at a time fallback for the unusual cases; the value so far is in copy
+	private String copySlow(boolean inQuotes, boolean wanted) throws Exception {
+		while (true) {
+			int c = read();
+			if (inQuotes) {
+				if (c == -1) {
+					throw new Exception("Unexpected end of file while parsing CSV input");
+				}
+				if (c == quoteChar) {
+					if (peek() == quoteChar) {
+						read();
+						copy.append(quoteChar);
+					} else {
+						inQuotes = false;
+					}
+				} else {
+					copy.append((char) c);
+				}
+			} else if (c == -1) {
+				terminator = END;
+				emptyAtEnd = copy.length() == 0;
+				return wanted ? copy.toString() : null;
+			} else if (c == quoteChar) {
+				inQuotes = true;
+			} else if (c == fieldChar || c == '\n' || c == '\r') {
+				endField(position - 1);
+				return wanted ? copy.toString() : null;
+			} else {
+				copy.append((char) c);
+			}
+		}
+	}
+
+	// i is the delimiter or line ending that closed the field
+	private void endField(int i) throws IOException {
+		char c = buffer[i];
+		position = i + 1;
+		if (c == fieldChar) {
+			terminator = FIELD;
+			return;
+		}
+		// \r\n and \n\r both count as a single line ending
+		int next = peek();
+		if ((c == '\n' && next == '\r') || (c == '\r' && next == '\n')) {
+			position++;
+		}
+		terminator = ROW;
+	}
+
+	private int read() throws IOException {
+		if (position == limit && fill(position) == -1) {
+			return -1;
+		}
+		return buffer[position++];
+	}
+
+	private int peek() throws IOException {
+		if (position == limit && fill(position) == -1) {
+			return -1;
+		}
+		return buffer[position];
+	}
+
+	// moves everything from keepFrom to the front of the buffer and reads the next
+	// block behind it. Returns the number of characters read or -1 at the end of input
+	private int fill(int keepFrom) throws IOException {
+		int kept = limit - keepFrom;
+		if (keepFrom > 0) {
+			System.arraycopy(buffer, keepFrom, buffer, 0, kept);
+		}
+		// a value longer than half a block gets a bigger buffer
+		if (!eof && kept * 2 > buffer.length) {
+			buffer = Arrays.copyOf(buffer, buffer.length * 2);
+		}
+		limit = kept;
+		position -= keepFrom;
+		if (eof) {
+			return -1;
+		}
+		int read;
+		do {
+			read = reader.read(buffer, limit, buffer.length - limit);
+		} while (read == 0);
+		if (read == -1) {
+			eof = true;
+			return -1;
+		}
+		limit += read;
+		return read;
+	}
+}
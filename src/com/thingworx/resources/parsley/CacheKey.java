@@ -0,0 +1,28 @@
+package com.thingworx.resources.parsley;
+
+// one version of a file together with the settings something was derived from
+// it with, the key of the caches that hold per file results
+final class CacheKey {
+
+	private final FileKey file;
+	private final String settings;
+
+	CacheKey(FileKey file, String settings) {
+		this.file = file;
+		this.settings = settings;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof CacheKey)) {
+			return false;
+		}
+		CacheKey other = (CacheKey) o;
+		return file.equals(other.file) && settings.equals(other.settings);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * file.hashCode() + settings.hashCode();
+	}
+}
@@ -0,0 +1,232 @@
+package com.thingworx.resources.parsley;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeUtils;
+import org.joda.time.DateTimeZone;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.DateTimeParser;
+import org.joda.time.format.DateTimeParserBucket;
+
+// parses date values for one date format. Parsers are cached per format so the
+// pattern is only compiled once, and the common ISO-8601 layouts and RAW epoch
+// milliseconds are read by hand without going through a joda formatter. Anything
+// the fast path doesn't recognise falls back to the formatter, so the results
+// and the errors are the same as parsing with the pattern
+final class DateParser {
+
+	// formats come from service parameters, past this many we stop caching them
+	private static final int MAX_CACHED = 256;
+	private static final ConcurrentHashMap<String, DateParser> _parsers = new ConcurrentHashMap<String, DateParser>();
+
+	private static final int[] DAYS_IN_MONTH = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+	private final boolean raw;
+	private final DateTimeFormatter formatter;
+
+	// ISO layout of the pattern, separator is 0 when the pattern has no time
+	private final boolean iso;
+	private final char separator;
+	private final boolean millis;
+	private final boolean offset;
+
+	// throws IllegalArgumentException for an invalid pattern
+	static DateParser forFormat(String format) {
+		DateParser parser = _parsers.get(format);
+		if (parser == null) {
+			parser = new DateParser(format);
+			if (_parsers.size() < MAX_CACHED) {
+				_parsers.put(format, parser);
+			}
+		}
+		return parser;
+	}
+
+	private DateParser(String format) {
+		raw = "RAW".equals(format);
+		formatter = raw ? null : DateTimeFormat.forPattern(format);
+
+		String layout = format;
+		offset = layout.endsWith("Z");
+		if (offset) {
+			layout = layout.substring(0, layout.length() - 1);
+		}
+		millis = layout.endsWith(".SSS");
+		if (millis) {
+			layout = layout.substring(0, layout.length() - 4);
+		}
+		if (layout.equals("yyyy-MM-dd'T'HH:mm:ss")) {
+			separator = 'T';
+		} else if (layout.equals("yyyy-MM-dd HH:mm:ss")) {
+			separator = ' ';
+		} else {
+			separator = 0;
+		}
+		iso = !raw && (separator != 0 || (layout.equals("yyyy-MM-dd") && !millis && !offset));
+	}
+
+	DateTime parse(String value) throws Exception {
+		if (raw) {
+			long epoch = epochMillis(value);
+			if (epoch != Long.MIN_VALUE) {
+				return new DateTime(epoch);
+			}
+			return new DateTime((long) Double.parseDouble(value));
+		}
+		if (iso) {
+			long parsed = isoMillis(value);
+			if (parsed != Long.MIN_VALUE) {
+				return new DateTime(parsed);
+			}
+		}
+		return formatter.parseDateTime(value);
+	}
+
+	// whether the whole value parses against the format
+	boolean isDate(String value) {
+		if (raw) {
+			return epochMillis(value) != Long.MIN_VALUE;
+		}
+		if (iso && isoMillis(value) != Long.MIN_VALUE) {
+			return true;
+		}
+		// the same steps as formatter.parseDateTime, without the exception when the
+		// text doesn't match the pattern
+		DateTimeParser parser = formatter.getParser();
+		DateTimeParserBucket bucket = new DateTimeParserBucket(0, DateTimeUtils.getChronology(formatter.getChronology()),
+				formatter.getLocale(), formatter.getPivotYear(), formatter.getDefaultYear());
+		if (parser.parseInto(bucket, value, 0) != value.length()) {
+			return false;
+		}
+		try {
+			bucket.computeMillis(true, value);
+			return true;
+		} catch (IllegalArgumentException e) {
+			// the text has the right shape but a field is out of range, e.g. February 30
+			return false;
+		}
+	}
+
+	// an optionally signed run of digits that fits in a long, or Long.MIN_VALUE
+	private static long epochMillis(String value) {
+		int length = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+			negative = value.charAt(0) == '-';
+			i++;
+		}
+		if (i == length || length - i > 18) {
+			return Long.MIN_VALUE;
+		}
+		long result = 0;
+		for (; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return Long.MIN_VALUE;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return negative ? -result : result;
+	}
+
+	// reads yyyy-MM-dd with the optional time, milliseconds and offset of the
+	// pattern at fixed positions. Returns Long.MIN_VALUE when the value isn't laid
+	// out exactly like that, or has a field the formatter would reject
+	private long isoMillis(String value) {
+		int length = value.length();
+		if (length < 10 || value.charAt(4) != '-' || value.charAt(7) != '-') {
+			return Long.MIN_VALUE;
+		}
+		int year = digits(value, 0, 4);
+		int month = digits(value, 5, 2);
+		int day = digits(value, 8, 2);
+		int hour = 0;
+		int minute = 0;
+		int second = 0;
+		int milli = 0;
+		int i = 10;
+		if (separator != 0) {
+			if (length < 19 || value.charAt(10) != separator || value.charAt(13) != ':' || value.charAt(16) != ':') {
+				return Long.MIN_VALUE;
+			}
+			hour = digits(value, 11, 2);
+			minute = digits(value, 14, 2);
+			second = digits(value, 17, 2);
+			i = 19;
+			if (millis) {
+				if (length < 23 || value.charAt(19) != '.') {
+					return Long.MIN_VALUE;
+				}
+				milli = digits(value, 20, 3);
+				i = 23;
+			}
+		}
+		if (year < 0 || month < 1 || month > 12 || day < 1 || day > daysInMonth(year, month) || hour < 0
+				|| hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59 || milli < 0) {
+			return Long.MIN_VALUE;
+		}
+		long local = ((epochDay(year, month, day) * 24 + hour) * 60 + minute) * 60000L + second * 1000L + milli;
+
+		if (!offset) {
+			if (i != length) {
+				return Long.MIN_VALUE;
+			}
+			// local time in the default zone, the formatter rejects times in a DST gap
+			DateTimeZone zone = DateTimeZone.getDefault();
+			int zoneOffset = zone.getOffsetFromLocal(local);
+			long instant = local - zoneOffset;
+			return zone.getOffset(instant) == zoneOffset ? instant : Long.MIN_VALUE;
+		}
+		if (i + 1 == length && value.charAt(i) == 'Z') {
+			return local;
+		}
+		// +HH:mm or +HHmm
+		if (i < length && (value.charAt(i) == '+' || value.charAt(i) == '-')) {
+			int sign = value.charAt(i) == '-' ? -1 : 1;
+			int minutesAt = length - i == 6 && value.charAt(i + 3) == ':' ? i + 4 : i + 3;
+			if (minutesAt + 2 != length) {
+				return Long.MIN_VALUE;
+			}
+			int offsetHours = digits(value, i + 1, 2);
+			int offsetMinutes = digits(value, minutesAt, 2);
+			if (offsetHours < 0 || offsetHours > 23 || offsetMinutes < 0 || offsetMinutes > 59) {
+				return Long.MIN_VALUE;
+			}
+			return local - sign * (offsetHours * 3600000L + offsetMinutes * 60000L);
+		}
+		return Long.MIN_VALUE;
+	}
+
+	// the number in count digits starting at start, -1 if any of them isn't a digit
+	private static int digits(String value, int start, int count) {
+		int result = 0;
+		for (int i = start; i < start + count; i++) {
+			char c = value.charAt(i);
+			if (c < '0' || c > '9') {
+				return -1;
+			}
+			result = result * 10 + (c - '0');
+		}
+		return result;
+	}
+
+	private static int daysInMonth(int year, int month) {
+		if (month == 2 && year % 4 == 0 && (year % 100 != 0 || year % 400 == 0)) {
+			return 29;
+		}
+		return DAYS_IN_MONTH[month - 1];
+	}
+
+	// days since 1970-01-01 in the proleptic gregorian calendar
+	private static long epochDay(int year, int month, int day) {
+		long y = month <= 2 ? year - 1 : year;
+		long era = (y >= 0 ? y : y - 399) / 400;
+		long yearOfEra = y - era * 400;
+		long dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+		long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+		return era * 146097 + dayOfEra - 719468;
+	}
+}
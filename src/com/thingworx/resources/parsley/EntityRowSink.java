@@ -0,0 +1,65 @@
+package com.thingworx.resources.parsley;
+
+import com.thingworx.datatables.DataTableThing;
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.streams.StreamThing;
+import com.thingworx.things.Thing;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+
+// writes rows to a Stream or DataTable in batches, so only one batch of rows is
+// ever held in memory
+final class EntityRowSink implements RowSink {
+
+	private final Thing target;
+	private final DataShapeDefinition shape;
+	private final int batchSize;
+
+	private InfoTable batch;
+	private long rowsWritten;
+
+	EntityRowSink(Thing target, DataShapeDefinition shape, int batchSize) {
+		this.target = target;
+		this.shape = shape;
+		this.batchSize = Math.max(batchSize, 1);
+		this.batch = new InfoTable(shape.clone());
+	}
+
+	static boolean canWriteTo(Thing thing) {
+		return thing instanceof StreamThing || thing instanceof DataTableThing;
+	}
+
+	static String getDataShapeName(Thing thing) {
+		if (thing instanceof StreamThing) {
+			return ((StreamThing) thing).getDataShapeName();
+		}
+		return ((DataTableThing) thing).getDataShapeName();
+	}
+
+	@Override
+	public void addRow(ValueCollection values) throws Exception {
+		batch.addRow(values);
+		if (batch.getRowCount() >= batchSize) {
+			flush();
+		}
+	}
+
+	void flush() throws Exception {
+		int rows = batch.getRowCount();
+		if (rows == 0) {
+			return;
+		}
+		if (target instanceof StreamThing) {
+			((StreamThing) target).AddStreamEntries(batch);
+		} else {
+			((DataTableThing) target).AddDataTableEntries(null, null, null, null, batch);
+		}
+		rowsWritten += rows;
+		// the entity may still hold on to the table it was given
+		batch = new InfoTable(shape.clone());
+	}
+
+	long getRowsWritten() {
+		return rowsWritten;
+	}
+}
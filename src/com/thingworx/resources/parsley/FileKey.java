@@ -0,0 +1,51 @@
+package com.thingworx.resources.parsley;
+
+import java.io.File;
+
+import com.thingworx.things.repository.FileRepositoryThing;
+
+// identifies one version of a repository file; anything cached against a file
+// is keyed on this so it goes stale as soon as the file is rewritten
+final class FileKey {
+
+	final String repository;
+	final String path;
+	final long size;
+	final long lastModified;
+
+	FileKey(String repository, String path, long size, long lastModified) {
+		this.repository = repository;
+		this.path = path;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	static FileKey of(FileRepositoryThing repo, String repository, String path) {
+		File file = new File(repo.getRootPath(), path);
+		return new FileKey(repository, path, file.length(), file.lastModified());
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof FileKey)) {
+			return false;
+		}
+		FileKey other = (FileKey) o;
+		return size == other.size && lastModified == other.lastModified && repository.equals(other.repository)
+				&& path.equals(other.path);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = repository.hashCode();
+		result = 31 * result + path.hashCode();
+		result = 31 * result + (int) (size ^ (size >>> 32));
+		result = 31 * result + (int) (lastModified ^ (lastModified >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return repository + ":" + path;
+	}
+}
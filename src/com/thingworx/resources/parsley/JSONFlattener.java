@@ -0,0 +1,107 @@
+package com.thingworx.resources.parsley;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+// turns a JSON document into flat rows for the flatten mode of ParseJSON and
+// ParseXML. Nested objects become dotted names, device.location.lat, and array
+// elements are numbered, items.0.name. When arrays are exploded the row is
+// repeated for every element instead, items.name, so two arrays give a row for
+// every pair of their elements. The document is walked with explicit stacks
+// rather than recursion, so its depth is only limited by the heap
+final class JSONFlattener {
+
+	// a row that is still being built: the values so far and the arrays it still
+	// has to be repeated for, as name and array pairs
+	private static final class Row {
+		final JSONObject values = new JSONObject();
+		final ArrayDeque<Object[]> arrays = new ArrayDeque<Object[]>();
+
+		Row copy() throws Exception {
+			Row copy = new Row();
+			Iterator<?> keys = values.keys();
+			while (keys.hasNext()) {
+				String key = (String) keys.next();
+				copy.values.put(key, values.get(key));
+			}
+			copy.arrays.addAll(arrays);
+			return copy;
+		}
+	}
+
+	private final boolean explode;
+	// rows in document order, the next one on top
+	private final ArrayDeque<Row> pending = new ArrayDeque<Row>();
+
+	JSONFlattener(JSONObject document, boolean explode) throws Exception {
+		this.explode = explode;
+		Row row = new Row();
+		flatten(row, "", document);
+		pending.push(row);
+	}
+
+	// the next flat row, null after the last one
+	JSONObject next() throws Exception {
+		while (!pending.isEmpty()) {
+			Row row = pending.pop();
+			Object[] array = row.arrays.pollFirst();
+			if (array == null) {
+				return row.values;
+			}
+			JSONArray items = (JSONArray) array[1];
+			if (items.length() == 0) {
+				// an empty array leaves the row as it is
+				pending.push(row);
+				continue;
+			}
+			for (int i = items.length() - 1; i >= 0; i--) {
+				Row element = i > 0 ? row.copy() : row;
+				flatten(element, (String) array[0], items.get(i));
+				pending.push(element);
+			}
+		}
+		return null;
+	}
+
+	// adds the values under value to row, putting off the arrays when they are exploded
+	private void flatten(Row row, String name, Object value) throws Exception {
+		ArrayDeque<Object[]> stack = new ArrayDeque<Object[]>();
+		stack.push(new Object[] { name, value });
+		while (!stack.isEmpty()) {
+			Object[] entry = stack.pop();
+			String prefix = (String) entry[0];
+			Object item = entry[1];
+			if (item instanceof JSONObject) {
+				JSONObject object = (JSONObject) item;
+				ArrayList<String> keys = new ArrayList<String>();
+				Iterator<?> iterator = object.keys();
+				while (iterator.hasNext()) {
+					keys.add((String) iterator.next());
+				}
+				// pushed backwards so they come off the stack in order
+				for (int i = keys.size() - 1; i >= 0; i--) {
+					stack.push(new Object[] { join(prefix, keys.get(i)), object.get(keys.get(i)) });
+				}
+			} else if (item instanceof JSONArray) {
+				JSONArray array = (JSONArray) item;
+				if (explode) {
+					row.arrays.addLast(new Object[] { prefix, array });
+				} else {
+					for (int i = array.length() - 1; i >= 0; i--) {
+						stack.push(new Object[] { join(prefix, String.valueOf(i)), array.get(i) });
+					}
+				}
+			} else {
+				row.values.put(prefix, item);
+			}
+		}
+	}
+
+	private static String join(String prefix, String name) {
+		return prefix.isEmpty() ? name : prefix + "." + name;
+	}
+}
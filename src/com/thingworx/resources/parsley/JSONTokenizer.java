@@ -0,0 +1,348 @@
+package com.thingworx.resources.parsley;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+
+// pulls a JSON document apart one token at a time, so a file can be converted as
+// it is read instead of being parsed into one tree first. Like CSVTokenizer the
+// input is read in large blocks and strings without escapes are sliced straight
+// out of the block. readValue builds the org.json value of a single element when
+// the caller wants the whole of it, with numbers typed the way org.json types them
+final class JSONTokenizer {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+
+	// what peek finds next
+	static final int END = 0;
+	static final int BEGIN_OBJECT = 1;
+	static final int END_OBJECT = 2;
+	static final int BEGIN_ARRAY = 3;
+	static final int END_ARRAY = 4;
+	static final int NAME = 5;
+	static final int VALUE = 6;
+
+	// where the tokenizer is within each open object or array
+	private static final int EMPTY_ARRAY = 0;
+	private static final int NONEMPTY_ARRAY = 1;
+	private static final int EMPTY_OBJECT = 2;
+	private static final int NONEMPTY_OBJECT = 3;
+	private static final int DANGLING_NAME = 4;
+	private static final int EMPTY_DOCUMENT = 5;
+	private static final int NONEMPTY_DOCUMENT = 6;
+
+	private static final int NONE = -1;
+
+	private final Reader reader;
+	private final char[] buffer = new char[BLOCK_SIZE];
+	private int position;
+	private int limit;
+	// characters read before the start of the buffer, for error positions
+	private long consumed;
+
+	private int[] scopes = new int[32];
+	private int depth = 1;
+	private int peeked = NONE;
+
+	private final StringBuilder copy = new StringBuilder();
+
+	JSONTokenizer(Reader reader) {
+		this.reader = reader;
+		scopes[0] = EMPTY_DOCUMENT;
+	}
+
+	int peek() throws Exception {
+		if (peeked != NONE) {
+			return peeked;
+		}
+		int scope = scopes[depth - 1];
+		if (scope == EMPTY_ARRAY || scope == NONEMPTY_ARRAY) {
+			int c = nextNonWhitespace();
+			if (c == -1) {
+				throw error("Unexpected end of the document");
+			}
+			if (c == ']') {
+				return peeked = END_ARRAY;
+			}
+			if (scope == NONEMPTY_ARRAY) {
+				if (c != ',') {
+					throw error("Expected , or ]");
+				}
+			} else {
+				position--;
+			}
+			scopes[depth - 1] = NONEMPTY_ARRAY;
+		} else if (scope == EMPTY_OBJECT || scope == NONEMPTY_OBJECT) {
+			int c = nextNonWhitespace();
+			if (c == -1) {
+				throw error("Unexpected end of the document");
+			}
+			if (c == '}') {
+				return peeked = END_OBJECT;
+			}
+			if (scope == NONEMPTY_OBJECT) {
+				if (c != ',') {
+					throw error("Expected , or }");
+				}
+				c = nextNonWhitespace();
+			}
+			if (c != '"') {
+				throw error("Expected a name");
+			}
+			scopes[depth - 1] = DANGLING_NAME;
+			return peeked = NAME;
+		} else if (scope == DANGLING_NAME) {
+			if (nextNonWhitespace() != ':') {
+				throw error("Expected :");
+			}
+			scopes[depth - 1] = NONEMPTY_OBJECT;
+		} else if (scope == NONEMPTY_DOCUMENT) {
+			if (nextNonWhitespace() != -1) {
+				throw error("Expected the end of the document");
+			}
+			return peeked = END;
+		} else {
+			scopes[depth - 1] = NONEMPTY_DOCUMENT;
+		}
+
+		int c = nextNonWhitespace();
+		if (c == -1) {
+			throw error("Unexpected end of the document");
+		}
+		if (c == '{') {
+			return peeked = BEGIN_OBJECT;
+		}
+		if (c == '[') {
+			return peeked = BEGIN_ARRAY;
+		}
+		position--;
+		return peeked = VALUE;
+	}
+
+	void beginObject() throws Exception {
+		expect(BEGIN_OBJECT, "an object");
+		push(EMPTY_OBJECT);
+	}
+
+	void endObject() throws Exception {
+		expect(END_OBJECT, "}");
+		depth--;
+	}
+
+	void beginArray() throws Exception {
+		expect(BEGIN_ARRAY, "an array");
+		push(EMPTY_ARRAY);
+	}
+
+	void endArray() throws Exception {
+		expect(END_ARRAY, "]");
+		depth--;
+	}
+
+	// whether the open object or array has another member
+	boolean hasNext() throws Exception {
+		int next = peek();
+		return next != END_OBJECT && next != END_ARRAY && next != END;
+	}
+
+	String nextName() throws Exception {
+		expect(NAME, "a name");
+		return readString();
+	}
+
+	// the next value as org.json would have parsed it: a JSONObject, JSONArray,
+	// String, Number, Boolean or JSONObject.NULL
+	Object readValue() throws Exception {
+		int next = peek();
+		if (next == BEGIN_OBJECT) {
+			beginObject();
+			JSONObject object = new JSONObject();
+			while (hasNext()) {
+				String name = nextName();
+				object.put(name, readValue());
+			}
+			endObject();
+			return object;
+		}
+		if (next == BEGIN_ARRAY) {
+			beginArray();
+			JSONArray array = new JSONArray();
+			while (hasNext()) {
+				array.put(readValue());
+			}
+			endArray();
+			return array;
+		}
+		expect(VALUE, "a value");
+		if (buffer[position] == '"') {
+			position++;
+			return readString();
+		}
+		return readLiteral();
+	}
+
+	// passes over the next value without building it
+	void skipValue() throws Exception {
+		int next = peek();
+		if (next == BEGIN_OBJECT) {
+			beginObject();
+			while (hasNext()) {
+				nextName();
+				skipValue();
+			}
+			endObject();
+		} else if (next == BEGIN_ARRAY) {
+			beginArray();
+			while (hasNext()) {
+				skipValue();
+			}
+			endArray();
+		} else {
+			readValue();
+		}
+	}
+
+	private void expect(int token, String expected) throws Exception {
+		if (peek() != token) {
+			throw error("Expected " + expected);
+		}
+		peeked = NONE;
+	}
+
+	private void push(int scope) {
+		if (depth == scopes.length) {
+			int[] grown = new int[depth * 2];
+			System.arraycopy(scopes, 0, grown, 0, depth);
+			scopes = grown;
+		}
+		scopes[depth++] = scope;
+	}
+
+	// the opening quote has been read
+	private String readString() throws Exception {
+		copy.setLength(0);
+		while (true) {
+			int start = position;
+			while (position < limit) {
+				char c = buffer[position++];
+				if (c == '"') {
+					if (copy.length() == 0) {
+						return new String(buffer, start, position - start - 1);
+					}
+					copy.append(buffer, start, position - start - 1);
+					return copy.toString();
+				}
+				if (c == '\\') {
+					copy.append(buffer, start, position - start - 1);
+					copy.append(readEscape());
+					start = position;
+				}
+			}
+			copy.append(buffer, start, position - start);
+			if (!fill()) {
+				throw error("Unterminated string");
+			}
+		}
+	}
+
+	private char readEscape() throws Exception {
+		if (position == limit && !fill()) {
+			throw error("Unterminated escape");
+		}
+		char c = buffer[position++];
+		switch (c) {
+		case 'b':
+			return '\b';
+		case 'f':
+			return '\f';
+		case 'n':
+			return '\n';
+		case 'r':
+			return '\r';
+		case 't':
+			return '\t';
+		case 'u':
+			int code = 0;
+			for (int i = 0; i < 4; i++) {
+				if (position == limit && !fill()) {
+					throw error("Unterminated escape");
+				}
+				int digit = Character.digit(buffer[position++], 16);
+				if (digit < 0) {
+					throw error("Invalid \\u escape");
+				}
+				code = code * 16 + digit;
+			}
+			return (char) code;
+		case '"':
+		case '\\':
+		case '/':
+			return c;
+		default:
+			throw error("Invalid escape \\" + c);
+		}
+	}
+
+	// a number, true, false or null
+	private Object readLiteral() throws Exception {
+		copy.setLength(0);
+		while (true) {
+			if (position == limit && !fill()) {
+				break;
+			}
+			char c = buffer[position];
+			if (c == ',' || c == ']' || c == '}' || c == ':' || Character.isWhitespace(c)) {
+				break;
+			}
+			copy.append(c);
+			position++;
+		}
+		String text = copy.toString();
+		if (text.isEmpty()) {
+			throw error(position < limit ? "Unexpected " + buffer[position] : "Unexpected end of the document");
+		}
+		Object value = JSONObject.stringToValue(text);
+		if (value instanceof String) {
+			throw error("Unexpected " + text);
+		}
+		return value;
+	}
+
+	private int nextNonWhitespace() throws IOException {
+		while (true) {
+			if (position == limit && !fill()) {
+				return -1;
+			}
+			char c = buffer[position++];
+			if (c != ' ' && c != '\n' && c != '\r' && c != '\t' && c != '\uFEFF') {
+				return c;
+			}
+		}
+	}
+
+	// reads the next block, returns false at the end of the input
+	private boolean fill() throws IOException {
+		consumed += limit;
+		position = 0;
+		limit = 0;
+		int read;
+		do {
+			read = reader.read(buffer, 0, buffer.length);
+		} while (read == 0);
+		if (read < 0) {
+			return false;
+		}
+		limit = read;
+		return true;
+	}
+
+	private InvalidRequestException error(String message) {
+		return new InvalidRequestException("Invalid JSON at character " + (consumed + position) + " - " + message,
+				RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+	}
+}
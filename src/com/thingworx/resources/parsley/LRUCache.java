@@ -0,0 +1,41 @@
+package com.thingworx.resources.parsley;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// small synchronized least recently used map for the per file caches
+final class LRUCache<K, V> {
+
+	private final LinkedHashMap<K, V> map;
+
+	LRUCache(final int maxEntries) {
+		this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	synchronized V get(K key) {
+		return map.get(key);
+	}
+
+	synchronized void put(K key, V value) {
+		map.put(key, value);
+	}
+
+	synchronized V remove(K key) {
+		return map.remove(key);
+	}
+
+	synchronized void clear() {
+		map.clear();
+	}
+
+	synchronized int size() {
+		return map.size();
+	}
+}
@@ -0,0 +1,128 @@
+package com.thingworx.resources.parsley;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+// reads newline delimited JSON a line at a time straight from the bytes, so the
+// file offset just past every line is known and an incremental parse can pick up
+// from it. Lines are UTF-8, a \r before the \n is dropped and blank lines are
+// skipped. A last line without a line ending may still be being written; it is
+// only returned when the reader isn't limited to complete lines
+final class NDJSONReader {
+
+	private static final int BLOCK_SIZE = 64 * 1024;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final InputStream in;
+	private final boolean completeOnly;
+	private byte[] buffer = new byte[BLOCK_SIZE];
+	private int position;
+	private int limit;
+	// file offset of buffer[0]
+	private long base;
+	private long offset;
+	private int lines;
+	// the line nextLine found
+	private int lineStart;
+	private int lineLength;
+
+	// in is positioned at start in the file
+	NDJSONReader(InputStream in, long start, boolean completeOnly) {
+		this.in = in;
+		this.completeOnly = completeOnly;
+		this.base = start;
+		this.offset = start;
+	}
+
+	// the next line that isn't blank, null at the end
+	String readLine() throws IOException {
+		return nextLine() ? new String(buffer, lineStart, lineLength, UTF8) : null;
+	}
+
+	// passes over the next line that isn't blank without decoding it, false at the end
+	boolean skipLine() throws IOException {
+		return nextLine();
+	}
+
+	private boolean nextLine() throws IOException {
+		int scanned = position;
+		while (true) {
+			int end = -1;
+			for (int i = scanned; i < limit; i++) {
+				if (buffer[i] == '\n') {
+					end = i;
+					break;
+				}
+			}
+			if (end < 0) {
+				scanned = limit - position;
+				if (fill()) {
+					continue;
+				}
+				scanned = position;
+				if (completeOnly || position == limit) {
+					return false;
+				}
+				end = limit;
+			}
+			lineStart = position;
+			lineLength = end - position;
+			position = Math.min(end + 1, limit);
+			scanned = position;
+			offset = base + position;
+			if (lineLength > 0 && buffer[lineStart + lineLength - 1] == '\r') {
+				lineLength--;
+			}
+			if (!isBlank(lineStart, lineLength)) {
+				lines++;
+				return true;
+			}
+		}
+	}
+
+	// the file offset just past the last line read
+	long getOffset() {
+		return offset;
+	}
+
+	// lines read so far, blank lines not counted
+	int getLineCount() {
+		return lines;
+	}
+
+	private boolean isBlank(int start, int length) {
+		for (int i = start; i < start + length; i++) {
+			byte b = buffer[i];
+			if (b != ' ' && b != '\t' && b != '\r') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// reads more of the line at position, returns false at the end of the input
+	private boolean fill() throws IOException {
+		if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, limit - position);
+			base += position;
+			limit -= position;
+			position = 0;
+		}
+		if (limit == buffer.length) {
+			// a line longer than the buffer
+			byte[] grown = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, limit);
+			buffer = grown;
+		}
+		int read;
+		do {
+			read = in.read(buffer, limit, buffer.length - limit);
+		} while (read == 0);
+		if (read < 0) {
+			return false;
+		}
+		limit += read;
+		return true;
+	}
+}
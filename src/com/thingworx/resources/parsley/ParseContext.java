@@ -0,0 +1,43 @@
+package com.thingworx.resources.parsley;
+
+// the settings of one service call. Parsley is a single resource instance shared
+// by every caller, so nothing a call sets up can live in its fields; it is passed
+// down in one of these instead. Contexts never change once created, so the tasks
+// of a parallel parse share them as well
+final class ParseContext {
+
+	static final String DEFAULT_DATE_FORMAT = "RAW";
+
+	// This is the value for which, if no data shape is passed in, Parsley will
+	// assume a number value is a date when parsing JSON
+	static final long DEFAULT_MIN_DATE_MILLISECONDS = 946598400000L;
+
+	final String dateFormat;
+	final long minDateMilliseconds;
+	final boolean hasDatashape;
+	final boolean hasHeader;
+	final String customHeaders;
+	// field names to keep when the fields are inferred, null keeps every column
+	final String columns;
+	// rows that fail the filter are dropped before they are converted, null keeps every row
+	final RowFilter filter;
+	// set for a tolerant parse, which records bad values and rows here instead of failing
+	final ParseErrors errors;
+	// the call the phases and counts of the parse are recorded against
+	final ParseStatistics.Call stats;
+	final TypeClassifier classifier;
+
+	ParseContext(String dateFormat, long minDateMilliseconds, boolean hasDatashape, boolean hasHeader,
+			String customHeaders, String columns, RowFilter filter, ParseErrors errors, ParseStatistics.Call stats) {
+		this.dateFormat = dateFormat;
+		this.minDateMilliseconds = minDateMilliseconds;
+		this.hasDatashape = hasDatashape;
+		this.hasHeader = hasHeader;
+		this.customHeaders = customHeaders;
+		this.columns = columns;
+		this.filter = filter;
+		this.errors = errors;
+		this.stats = stats;
+		this.classifier = new TypeClassifier(dateFormat, minDateMilliseconds);
+	}
+}
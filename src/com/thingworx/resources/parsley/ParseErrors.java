@@ -0,0 +1,99 @@
+package com.thingworx.resources.parsley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+
+import org.slf4j.Logger;
+
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+
+// the values and rows a tolerant parse couldn't convert. The parse leaves a bad
+// value empty, or drops a row it can't read, and carries on; the problem is kept
+// here with its row number instead. Only the first maxErrors are kept and only the
+// first few are logged, the rest are just counted. Chunks of a parallel parse
+// report into the same instance
+final class ParseErrors {
+
+	private static final int LOGGED = 10;
+
+	private static final class Entry {
+		final int row;
+		final String field;
+		final String value;
+		final String reason;
+
+		Entry(int row, String field, String value, String reason) {
+			this.row = row;
+			this.field = field;
+			this.value = value;
+			this.reason = reason;
+		}
+	}
+
+	private final int maxErrors;
+	private final Logger logger;
+	private final ArrayList<Entry> errors = new ArrayList<Entry>();
+	private long count;
+
+	ParseErrors(int maxErrors, Logger logger) {
+		this.maxErrors = Math.max(0, maxErrors);
+		this.logger = logger;
+	}
+
+	// row is -1 and field null where they aren't known
+	synchronized void add(int row, String field, String value, String reason) {
+		count++;
+		if (errors.size() < maxErrors) {
+			errors.add(new Entry(row, field, value, reason));
+		}
+		if (count <= LOGGED) {
+			logger.warn("Parse error" + (row >= 0 ? " at row " + row : "") + (field != null ? " in " + field : "")
+					+ " - " + reason);
+		}
+	}
+
+	synchronized long getCount() {
+		return count;
+	}
+
+	// logs how many errors went unlogged, once the parse of source is done
+	synchronized void logSummary(String source) {
+		if (count > LOGGED) {
+			logger.warn(count + " parse errors in " + source + ", only the first " + LOGGED + " were logged");
+		}
+	}
+
+	// the kept errors in row order
+	synchronized InfoTable toInfoTable() throws Exception {
+		ArrayList<Entry> sorted = new ArrayList<Entry>(errors);
+		Collections.sort(sorted, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry a, Entry b) {
+				return Integer.compare(a.row, b.row);
+			}
+		});
+		InfoTable it = new InfoTable();
+		Parsley.addField(it, "row", BaseTypes.INTEGER, 0);
+		Parsley.addField(it, "field", BaseTypes.STRING, 1);
+		Parsley.addField(it, "value", BaseTypes.STRING, 2);
+		Parsley.addField(it, "reason", BaseTypes.STRING, 3);
+		for (Entry error : sorted) {
+			ValueCollection values = new ValueCollection();
+			if (error.row >= 0) {
+				values.put("row", BaseTypes.ConvertToPrimitive(error.row, BaseTypes.INTEGER));
+			}
+			if (error.field != null) {
+				values.put("field", BaseTypes.ConvertToPrimitive(error.field, BaseTypes.STRING));
+			}
+			if (error.value != null) {
+				values.put("value", BaseTypes.ConvertToPrimitive(error.value, BaseTypes.STRING));
+			}
+			values.put("reason", BaseTypes.ConvertToPrimitive(error.reason, BaseTypes.STRING));
+			it.addRow(values);
+		}
+		return it;
+	}
+}
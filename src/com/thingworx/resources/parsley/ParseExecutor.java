@@ -0,0 +1,150 @@
+package com.thingworx.resources.parsley;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+
+// the worker pool for parallel parses, the threads background parse jobs run
+// on, and admission control for the parse services. Only so many parses run at
+// once and together they may only claim a share of the heap, estimated from the
+// size of the file; callers over the limit wait in a bounded queue and fail fast
+// once it is full or their wait times out
+final class ParseExecutor {
+
+	private final ThreadPoolExecutor workers;
+	// jobs wait for admission like any other parse, so this pool doesn't need a bound
+	private final ExecutorService jobs;
+	// housekeeping that has to happen whether or not anything is being parsed
+	private final ScheduledExecutorService sweeper;
+	private final int maxConcurrent;
+	private final int maxQueued;
+	private final long queueTimeout;
+	private final long heapBudget;
+	private final double heapPerFileByte;
+
+	// guarded by this
+	private int running;
+	private int queued;
+	private long reserved;
+
+	ParseExecutor(int threads, int maxConcurrent, int maxQueued, long queueTimeout, int heapBudgetPercent,
+			double heapPerFileByte) {
+		this.maxConcurrent = Math.max(1, maxConcurrent);
+		this.maxQueued = Math.max(0, maxQueued);
+		this.queueTimeout = queueTimeout;
+		this.heapBudget = Runtime.getRuntime().maxMemory() / 100 * Math.max(1, Math.min(100, heapBudgetPercent));
+		this.heapPerFileByte = heapPerFileByte;
+
+		int size = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		workers = new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				threadFactory("Parsley-Parse-"));
+		workers.allowCoreThreadTimeOut(true);
+		jobs = Executors.newCachedThreadPool(threadFactory("Parsley-Job-"));
+		sweeper = Executors.newSingleThreadScheduledExecutor(threadFactory("Parsley-Sweep-"));
+	}
+
+	private static ThreadFactory threadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	int getParallelism() {
+		return workers.getMaximumPoolSize();
+	}
+
+	<T> Future<T> submit(Callable<T> task) {
+		return workers.submit(task);
+	}
+
+	Future<?> submitJob(Runnable job) {
+		return jobs.submit(job);
+	}
+
+	// runs task every interval milliseconds until the executor is shut down
+	void scheduleEvery(Runnable task, long interval) {
+		sweeper.scheduleWithFixedDelay(task, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	void shutdown() {
+		workers.shutdownNow();
+		jobs.shutdownNow();
+		sweeper.shutdownNow();
+	}
+
+	// holds a parse slot and its share of the heap until released
+	final class Admission {
+		private final long bytes;
+		private boolean released;
+
+		private Admission(long bytes) {
+			this.bytes = bytes;
+		}
+
+		void release() {
+			synchronized (ParseExecutor.this) {
+				if (!released) {
+					released = true;
+					running--;
+					reserved -= bytes;
+					ParseExecutor.this.notifyAll();
+				}
+			}
+		}
+	}
+
+	// blocks until the parse may start. fileSize is the size of what the parse
+	// loads into memory, 0 for parses that stream their rows somewhere else
+	synchronized Admission admit(long fileSize) throws Exception {
+		long bytes = (long) (fileSize * heapPerFileByte);
+		if (bytes > heapBudget) {
+			throw new InvalidRequestException("File is too large to parse into memory - estimated " + (bytes >> 20)
+					+ "MB of " + (heapBudget >> 20) + "MB available to Parsley",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		if (!canStart(bytes)) {
+			if (queued >= maxQueued) {
+				throw new InvalidRequestException("Parsley is busy - " + running + " parses running and " + queued
+						+ " waiting", RESTAPIConstants.StatusCode.STATUS_SERVICE_UNAVAILABLE);
+			}
+			queued++;
+			try {
+				long deadline = System.currentTimeMillis() + queueTimeout;
+				while (!canStart(bytes)) {
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						throw new InvalidRequestException("Timed out waiting for a free parse slot",
+								RESTAPIConstants.StatusCode.STATUS_SERVICE_UNAVAILABLE);
+					}
+					wait(remaining);
+				}
+			} finally {
+				queued--;
+			}
+		}
+		running++;
+		reserved += bytes;
+		return new Admission(bytes);
+	}
+
+	private boolean canStart(long bytes) {
+		return running < maxConcurrent && reserved + bytes <= heapBudget;
+	}
+}
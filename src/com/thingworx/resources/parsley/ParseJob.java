@@ -0,0 +1,222 @@
+package com.thingworx.resources.parsley;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.thingworx.types.InfoTable;
+
+// a parse running in the background. The parse reads its file through track(),
+// which counts the bytes and stops the parse once the job is cancelled or runs
+// past its timeout, so the file is closed by the parse's own cleanup
+final class ParseJob {
+
+	enum State {
+		QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED, TIMED_OUT
+	}
+
+	final String id = UUID.randomUUID().toString();
+	final String service;
+	final String path;
+	final long totalBytes;
+	final long startTime = System.currentTimeMillis();
+	// 0 for no timeout
+	private final long deadline;
+
+	private final AtomicLong rows = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+
+	private volatile State state = State.QUEUED;
+	private volatile String phase = "";
+	private volatile String error;
+	private volatile InfoTable result;
+	// set instead of the rows of result when they were written to disk
+	private volatile RowSpill spill;
+	// problems found by a tolerant parse, returned with every page of the result
+	private volatile ParseErrors errors;
+	private volatile long endTime;
+	private volatile Future<?> future;
+
+	ParseJob(String service, String path, long totalBytes, long timeout) {
+		this.service = service;
+		this.path = path;
+		this.totalBytes = totalBytes;
+		this.deadline = timeout > 0 ? startTime + timeout : 0;
+	}
+
+	State getState() {
+		return state;
+	}
+
+	String getPhase() {
+		return phase;
+	}
+
+	String getError() {
+		return error;
+	}
+
+	InfoTable getResult() {
+		return result;
+	}
+
+	RowSpill getSpill() {
+		return spill;
+	}
+
+	ParseErrors getErrors() {
+		return errors;
+	}
+
+	void setErrors(ParseErrors errors) {
+		this.errors = errors;
+	}
+
+	long getRows() {
+		return rows.get();
+	}
+
+	long getBytes() {
+		return bytes.get();
+	}
+
+	long getEndTime() {
+		return endTime;
+	}
+
+	boolean isDone() {
+		return endTime != 0;
+	}
+
+	void setFuture(Future<?> future) {
+		this.future = future;
+	}
+
+	// each pass over the file starts counting bytes from 0 again
+	void startPhase(String phase) {
+		this.phase = phase;
+		bytes.set(0);
+	}
+
+	void rowParsed() throws IOException {
+		rows.incrementAndGet();
+		checkStopped();
+	}
+
+	synchronized boolean start() {
+		if (state != State.QUEUED) {
+			return false;
+		}
+		state = State.RUNNING;
+		return true;
+	}
+
+	synchronized void complete(InfoTable result) {
+		if (state == State.RUNNING) {
+			this.result = result;
+			state = State.COMPLETED;
+		}
+		endTime = System.currentTimeMillis();
+	}
+
+	// the rows are paged out of the spill file, which the job owns from here on
+	synchronized void complete(RowSpill spill) {
+		if (state == State.RUNNING) {
+			this.spill = spill;
+			state = State.COMPLETED;
+		} else {
+			spill.delete();
+		}
+		endTime = System.currentTimeMillis();
+	}
+
+	// lets go of the result, deleting its spill file
+	void discard() {
+		RowSpill rows = spill;
+		spill = null;
+		result = null;
+		if (rows != null) {
+			rows.delete();
+		}
+	}
+
+	// a parse that was stopped on purpose keeps its cancelled or timed out state
+	synchronized void fail(Exception e) {
+		if (state == State.RUNNING || state == State.QUEUED) {
+			error = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+			state = State.FAILED;
+		}
+		endTime = System.currentTimeMillis();
+	}
+
+	// returns false if the job had already finished
+	boolean cancel() {
+		return stop(State.CANCELLED, "Cancelled");
+	}
+
+	private boolean stop(State reason, String message) {
+		Future<?> running;
+		synchronized (this) {
+			if (state != State.QUEUED && state != State.RUNNING) {
+				return false;
+			}
+			boolean queued = state == State.QUEUED;
+			state = reason;
+			error = message;
+			if (queued) {
+				// never started, so nothing else will finish it
+				endTime = System.currentTimeMillis();
+			}
+			running = future;
+		}
+		if (running != null) {
+			running.cancel(true);
+		}
+		return true;
+	}
+
+	void checkStopped() throws IOException {
+		if (deadline != 0 && state == State.RUNNING && System.currentTimeMillis() > deadline) {
+			stop(State.TIMED_OUT, "Timed out after " + (deadline - startTime) / 1000 + " seconds");
+		}
+		if (state != State.RUNNING) {
+			throw new InterruptedIOException("Parse job " + id + " was stopped");
+		}
+	}
+
+	InputStream track(InputStream stream) {
+		return new FilterInputStream(stream) {
+			@Override
+			public int read() throws IOException {
+				checkStopped();
+				int b = super.read();
+				if (b != -1) {
+					bytes.incrementAndGet();
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] buffer, int offset, int length) throws IOException {
+				checkStopped();
+				int read = super.read(buffer, offset, length);
+				if (read > 0) {
+					bytes.addAndGet(read);
+				}
+				return read;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				checkStopped();
+				long skipped = super.skip(n);
+				bytes.addAndGet(skipped);
+				return skipped;
+			}
+		};
+	}
+}
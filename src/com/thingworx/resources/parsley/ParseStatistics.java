@@ -0,0 +1,238 @@
+package com.thingworx.resources.parsley;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+
+// running totals of every parse service since the last reset. A service call
+// starts a Call, which collects its own counts and phase timings - the tasks of a
+// parallel parse add to it at the same time - and adds them to the totals of its
+// service when it ends. Nothing here takes a lock, so recording costs a few atomic
+// adds per call and the totals can be read while parses are running
+final class ParseStatistics {
+
+	enum Phase {
+		OPEN("open"), INFER("infer"), TOKENIZE("tokenize"), CONVERT("convert"), ADD_ROW("addRow");
+
+		final String field;
+
+		Phase(String field) {
+			this.field = field;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+	// call latencies are counted in buckets of powers of two milliseconds, the
+	// last bucket holds everything from about 17 minutes up
+	private static final int BUCKETS = 22;
+
+	private static final class Totals {
+		final LongAdder calls = new LongAdder();
+		final LongAdder errors = new LongAdder();
+		final LongAdder bytes = new LongAdder();
+		final LongAdder rows = new LongAdder();
+		final LongAdder fallbacks = new LongAdder();
+		final LongAdder cacheHits = new LongAdder();
+		final LongAdder nanos = new LongAdder();
+		final AtomicLong maxNanos = new AtomicLong();
+		final LongAdder[] phases = new LongAdder[PHASES.length];
+		final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+		Totals() {
+			for (int i = 0; i < phases.length; i++) {
+				phases[i] = new LongAdder();
+			}
+		}
+	}
+
+	// one service call
+	static final class Call {
+		private final ParseStatistics statistics;
+		private final String service;
+		private final long start = System.nanoTime();
+		private final AtomicLongArray phases = new AtomicLongArray(PHASES.length);
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong fallbacks = new AtomicLong();
+		private final AtomicLong cacheHits = new AtomicLong();
+		private volatile boolean succeeded;
+		private final AtomicBoolean ended = new AtomicBoolean();
+
+		private Call(ParseStatistics statistics, String service) {
+			this.statistics = statistics;
+			this.service = service;
+		}
+
+		void add(Phase phase, long nanos) {
+			phases.addAndGet(phase.ordinal(), nanos);
+		}
+
+		// adds the time since start to phase and returns the time now, so the
+		// phases of a loop can be timed one after the other
+		long time(Phase phase, long start) {
+			long now = System.nanoTime();
+			phases.addAndGet(phase.ordinal(), now - start);
+			return now;
+		}
+
+		void bytesRead(long count) {
+			bytes.addAndGet(count);
+		}
+
+		// a field type had to be widened after values were already typed
+		void fallback() {
+			fallbacks.incrementAndGet();
+		}
+
+		void cacheHit() {
+			cacheHits.incrementAndGet();
+		}
+
+		// the call returned rows rows, a call that ends without this counts as an error
+		void succeeded(long rows) {
+			this.rows.addAndGet(rows);
+			succeeded = true;
+		}
+
+		// only the first end is recorded
+		void end() {
+			if (ended.compareAndSet(false, true)) {
+				statistics.record(this, System.nanoTime() - start);
+			}
+		}
+	}
+
+	private final ConcurrentHashMap<String, Totals> services = new ConcurrentHashMap<String, Totals>();
+
+	Call start(String service) {
+		return new Call(this, service);
+	}
+
+	private void record(Call call, long nanos) {
+		Totals totals = services.get(call.service);
+		if (totals == null) {
+			Totals created = new Totals();
+			totals = services.putIfAbsent(call.service, created);
+			if (totals == null) {
+				totals = created;
+			}
+		}
+		totals.calls.increment();
+		if (!call.succeeded) {
+			totals.errors.increment();
+		}
+		totals.bytes.add(call.bytes.get());
+		totals.rows.add(call.rows.get());
+		totals.fallbacks.add(call.fallbacks.get());
+		totals.cacheHits.add(call.cacheHits.get());
+		totals.nanos.add(nanos);
+		for (int i = 0; i < PHASES.length; i++) {
+			totals.phases[i].add(call.phases.get(i));
+		}
+		totals.latencies.incrementAndGet(bucket(nanos));
+		long max = totals.maxNanos.get();
+		while (nanos > max && !totals.maxNanos.compareAndSet(max, nanos)) {
+			max = totals.maxNanos.get();
+		}
+	}
+
+	private static int bucket(long nanos) {
+		long millis = nanos / 1000000;
+		int bucket = 0;
+		while (millis > 0 && bucket < BUCKETS - 1) {
+			millis >>= 1;
+			bucket++;
+		}
+		return bucket;
+	}
+
+	// calls that are running while the totals are reset add to the new totals
+	void reset() {
+		services.clear();
+	}
+
+	// the upper bound of the bucket holding the given fraction of the calls
+	private static double percentile(long[] latencies, long calls, double fraction) {
+		long rank = (long) Math.ceil(calls * fraction);
+		long seen = 0;
+		for (int i = 0; i < latencies.length; i++) {
+			seen += latencies[i];
+			if (seen >= rank) {
+				return 1L << i;
+			}
+		}
+		return 1L << (latencies.length - 1);
+	}
+
+	// one row per service in name order, times in milliseconds
+	InfoTable toInfoTable() throws Exception {
+		InfoTable it = new InfoTable();
+		Parsley.addField(it, "service", BaseTypes.STRING, 0);
+		Parsley.addField(it, "calls", BaseTypes.LONG, 1);
+		Parsley.addField(it, "errors", BaseTypes.LONG, 2);
+		Parsley.addField(it, "bytesRead", BaseTypes.LONG, 3);
+		Parsley.addField(it, "rowsEmitted", BaseTypes.LONG, 4);
+		Parsley.addField(it, "rowsPerSecond", BaseTypes.NUMBER, 5);
+		Parsley.addField(it, "typeFallbacks", BaseTypes.LONG, 6);
+		Parsley.addField(it, "cacheHits", BaseTypes.LONG, 7);
+		Parsley.addField(it, "meanMillis", BaseTypes.NUMBER, 8);
+		Parsley.addField(it, "p50Millis", BaseTypes.NUMBER, 9);
+		Parsley.addField(it, "p95Millis", BaseTypes.NUMBER, 10);
+		Parsley.addField(it, "p99Millis", BaseTypes.NUMBER, 11);
+		Parsley.addField(it, "maxMillis", BaseTypes.NUMBER, 12);
+		for (Phase phase : PHASES) {
+			Parsley.addField(it, phase.field + "Millis", BaseTypes.NUMBER, 13 + phase.ordinal());
+		}
+
+		ArrayList<String> names = new ArrayList<String>(services.keySet());
+		Collections.sort(names);
+		for (String name : names) {
+			Totals totals = services.get(name);
+			if (totals == null) {
+				continue;
+			}
+			long calls = totals.calls.sum();
+			long rows = totals.rows.sum();
+			double millis = totals.nanos.sum() / 1e6;
+			long[] latencies = new long[BUCKETS];
+			for (int i = 0; i < BUCKETS; i++) {
+				latencies[i] = totals.latencies.get(i);
+			}
+
+			ValueCollection values = new ValueCollection();
+			values.put("service", BaseTypes.ConvertToPrimitive(name, BaseTypes.STRING));
+			values.put("calls", BaseTypes.ConvertToPrimitive(calls, BaseTypes.LONG));
+			values.put("errors", BaseTypes.ConvertToPrimitive(totals.errors.sum(), BaseTypes.LONG));
+			values.put("bytesRead", BaseTypes.ConvertToPrimitive(totals.bytes.sum(), BaseTypes.LONG));
+			values.put("rowsEmitted", BaseTypes.ConvertToPrimitive(rows, BaseTypes.LONG));
+			values.put("rowsPerSecond",
+					BaseTypes.ConvertToPrimitive(millis > 0 ? rows * 1000 / millis : 0, BaseTypes.NUMBER));
+			values.put("typeFallbacks", BaseTypes.ConvertToPrimitive(totals.fallbacks.sum(), BaseTypes.LONG));
+			values.put("cacheHits", BaseTypes.ConvertToPrimitive(totals.cacheHits.sum(), BaseTypes.LONG));
+			values.put("meanMillis", BaseTypes.ConvertToPrimitive(calls > 0 ? millis / calls : 0, BaseTypes.NUMBER));
+			if (calls > 0) {
+				values.put("p50Millis",
+						BaseTypes.ConvertToPrimitive(percentile(latencies, calls, 0.5), BaseTypes.NUMBER));
+				values.put("p95Millis",
+						BaseTypes.ConvertToPrimitive(percentile(latencies, calls, 0.95), BaseTypes.NUMBER));
+				values.put("p99Millis",
+						BaseTypes.ConvertToPrimitive(percentile(latencies, calls, 0.99), BaseTypes.NUMBER));
+			}
+			values.put("maxMillis", BaseTypes.ConvertToPrimitive(totals.maxNanos.get() / 1e6, BaseTypes.NUMBER));
+			for (Phase phase : PHASES) {
+				values.put(phase.field + "Millis",
+						BaseTypes.ConvertToPrimitive(totals.phases[phase.ordinal()].sum() / 1e6, BaseTypes.NUMBER));
+			}
+			it.addRow(values);
+		}
+		return it;
+	}
+}
@@ -1,14 +1,29 @@
 package com.thingworx.resources.parsley;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
 import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerFactory;
@@ -29,36 +44,84 @@ import org.w3c.dom.Document;
 import com.monitorjbl.xlsx.StreamingReader;
 import com.thingworx.common.RESTAPIConstants;
 import com.thingworx.common.exceptions.InvalidRequestException;
-import com.thingworx.common.utils.DateUtilities;
 import com.thingworx.data.util.InfoTableInstanceFactory;
+import com.thingworx.entities.utils.EntityUtilities;
 import com.thingworx.entities.utils.ThingUtilities;
 import com.thingworx.logging.LogUtilities;
+import com.thingworx.metadata.DataShapeDefinition;
 import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinition;
+import com.thingworx.metadata.annotations.ThingworxConfigurationTableDefinitions;
+import com.thingworx.metadata.annotations.ThingworxDataShapeDefinition;
+import com.thingworx.metadata.annotations.ThingworxFieldDefinition;
 import com.thingworx.metadata.annotations.ThingworxServiceDefinition;
 import com.thingworx.metadata.annotations.ThingworxServiceParameter;
 import com.thingworx.metadata.annotations.ThingworxServiceResult;
+import com.thingworx.relationships.RelationshipTypes.ThingworxRelationshipTypes;
 import com.thingworx.resources.Resource;
+import com.thingworx.resources.entities.EntityServices;
+import com.thingworx.security.context.SecurityContext;
 import com.thingworx.things.Thing;
 import com.thingworx.things.repository.FileRepositoryThing;
 import com.thingworx.types.BaseTypes;
 import com.thingworx.types.InfoTable;
 import com.thingworx.types.collections.ValueCollection;
-import com.thingworx.types.primitives.structs.Location;
-
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.webservices.context.ThreadLocalContext;
+
+@ThingworxConfigurationTableDefinitions(tables = {
+		@ThingworxConfigurationTableDefinition(name = "ParseSettings", description = "Limits on concurrent parsing", isMultiRow = false, dataShape = @ThingworxDataShapeDefinition(fields = {
+				@ThingworxFieldDefinition(name = "workerThreads", description = "Threads used by parallel parses, 0 for one per core", baseType = "INTEGER", ordinal = 0, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "maxConcurrentParses", description = "Number of file parses that can run at once", baseType = "INTEGER", ordinal = 1, aspects = {
+						"defaultValue:4" }),
+				@ThingworxFieldDefinition(name = "maxQueuedParses", description = "Number of file parses that can wait for a slot before calls are refused", baseType = "INTEGER", ordinal = 2, aspects = {
+						"defaultValue:16" }),
+				@ThingworxFieldDefinition(name = "queueTimeout", description = "Seconds a file parse waits for a slot", baseType = "INTEGER", ordinal = 3, aspects = {
+						"defaultValue:30" }),
+				@ThingworxFieldDefinition(name = "heapBudgetPercent", description = "Percent of the maximum heap that running parses may use together", baseType = "INTEGER", ordinal = 4, aspects = {
+						"defaultValue:50" }),
+				@ThingworxFieldDefinition(name = "heapPerFileByte", description = "Estimated heap bytes a parse uses per byte of file", baseType = "NUMBER", ordinal = 5, aspects = {
+						"defaultValue:8" }),
+				@ThingworxFieldDefinition(name = "resultCacheSize", description = "Megabytes of heap kept for the results of ParseCSV and ParseXLSX on unchanged files, 0 turns the cache off", baseType = "INTEGER", ordinal = 6, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "spillThreshold", description = "Megabytes of parsed rows a StartParseCSVJob job keeps in memory before writing the rest to a temp file, 0 keeps them all in memory", baseType = "INTEGER", ordinal = 7, aspects = {
+						"defaultValue:0" }),
+				@ThingworxFieldDefinition(name = "spillDirectory", description = "Directory for the temp files of spilled jobs, the system temp directory if empty", baseType = "STRING", ordinal = 8, aspects = {
+						"defaultValue:" }) })) })
 public class Parsley extends Resource {
 
 	private static final long serialVersionUID = 1L;
 	protected final static Logger _logger = LogUtilities.getInstance().getApplicationLogger(Parsley.class);
 
-	// set the default date format
-	private String _dateFormat = "RAW";
-	private Boolean _hasDatashape = false;
-	private Boolean _hasHeader = false;
-	private String _customHeaders;
+	// chunks handed to the parse pool when ParseCSV runs in parallel
+	private static final long MIN_CHUNK_SIZE = 1024L * 1024;
+	private static final long MAX_CHUNK_SIZE = 32L * 1024 * 1024;
+	// elements of a JSON array ParseJSONArray converts as one block
+	private static final int MIN_JSON_BLOCK = 1000;
+
+	// worker pool and admission control, set up from the ParseSettings table
+	// along with the result cache. The cache is set before the executor is
+	private volatile ParseExecutor _executor;
+	private volatile ResultCache _resultCache;
+
+	// background parses by job id. Finished jobs are kept until their result is
+	// fetched or they are older than JOB_RETENTION
+	private final ConcurrentHashMap<String, ParseJob> _jobs = new ConcurrentHashMap<String, ParseJob>();
+	private static final long JOB_RETENTION = 30L * 60 * 1000;
+	private static final long JOB_SWEEP_INTERVAL = 60L * 1000;
+
+	// row offset indexes for ParseCSVPage, one per file version
+	private static final LRUCache<FileKey, CSVRowIndex> _rowIndexCache = new LRUCache<FileKey, CSVRowIndex>(64);
 
-	// This is the value for which, if no data shape is passed in, Parsley will
-	// assume a number value is a date when parsing JSON
-	private Long _minDateMilliseconds = 946598400000L;
+	// inferred field definitions, one set per file version and inference settings
+	private static final SchemaCache _schemaCache = new SchemaCache(256);
+
+	// read positions for ParseCSVIncremental, one per file and set of parameters
+	private static final LRUCache<String, CSVTail> _tails = new LRUCache<String, CSVTail>(256);
+
+	// calls, rows and phase timings per service for GetParseStatistics
+	private static final ParseStatistics _statistics = new ParseStatistics();
 
 	@ThingworxServiceDefinition(name = "ParseJSON", description = "Parse JSON")
 	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
@@ -69,96 +132,680 @@ public class Parsley extends Resource {
 			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
 					"defaultValue:RAW" }) String dateFormat,
 			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
-					"defaultValue:100000000" }) Long minDateMilliseconds)
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Return up to this many of the values that couldn't be converted with the result", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors,
+			@ThingworxServiceParameter(name = "flatten", description = "Put nested values in fields with dotted names, e.g. device.location.lat, instead of nested infotables", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean flatten,
+			@ThingworxServiceParameter(name = "explodeArrays", description = "When flattening, repeat the row for every element of an array instead of numbering the elements", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean explodeArrays)
 			throws Exception {
 
 		_logger.trace("Entering Service: ParseJSON");
 
+		ParseStatistics.Call call = _statistics.start("ParseJSON");
+		try {
+			return parseJSON(call, json, dataShape, dateFormat, minDateMilliseconds, maxErrors,
+					flatten != null && flatten, explodeArrays != null && explodeArrays);
+		} finally {
+			call.end();
+		}
+	}
+
+	// ParseJSON and ParseXML once they have a JSONObject, counted against call
+	private InfoTable parseJSON(ParseStatistics.Call call, JSONObject json, String dataShape, String dateFormat,
+			Long minDateMilliseconds, Integer maxErrors, boolean flatten, boolean explodeArrays) throws Exception {
 		// TODO: this should really check to make sure the class is a JSON Array or a
 		// JSON Object
 		if (json == null) {
 			throw new InvalidRequestException("JSON Object must be specified",
 					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 		}
-		if (!minDateMilliseconds.equals(null) && minDateMilliseconds > 0) {
-			_minDateMilliseconds = minDateMilliseconds;
+		// bad values were always left out of the result, this only decides whether they are returned
+		ParseErrors errors = new ParseErrors(maxErrors != null ? maxErrors : 0, _logger);
+		long start = System.nanoTime();
+		ParseContext context = jsonContext(dateFormat, minDateMilliseconds, errors, call);
+		InfoTable it = flatten ? parseJSONFlat(context, json, dataShape, explodeArrays)
+				: parseJSON(context, json, dataShape);
+		call.time(ParseStatistics.Phase.CONVERT, start);
+		errors.logSummary("JSON");
+		call.succeeded(it.getRowCount());
+		return maxErrors != null && maxErrors > 0 ? withErrors(it, errors) : it;
+	}
+
+	private static ParseContext jsonContext(String dateFormat, Long minDateMilliseconds, ParseErrors errors,
+			ParseStatistics.Call call) {
+		// set the default date format
+		if (dateFormat == null || dateFormat.isEmpty()) {
+			dateFormat = ParseContext.DEFAULT_DATE_FORMAT;
 		}
-		if (dateFormat != null && !dateFormat.isEmpty()) {
-			_dateFormat = dateFormat;
+		long minDate = ParseContext.DEFAULT_MIN_DATE_MILLISECONDS;
+		if (minDateMilliseconds != null && minDateMilliseconds > 0) {
+			minDate = minDateMilliseconds;
 		}
+		return new ParseContext(dateFormat, minDate, false, false, null, null, null, errors, call);
+	}
 
-		// this tracks the ordinal of the fields in the datashape; this is only used if
-		// no datashape is passed in
-		int ord = 0;
-		InfoTable it;
-		Boolean hasShape = false;
+	@ThingworxServiceDefinition(name = "ParseJSONArray", description = "Parse a JSON array into a row per element, converting blocks of elements in parallel")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseJSONArray(
+			@ThingworxServiceParameter(name = "json", description = "JSON array to parse", baseType = "STRING") String json,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME", aspects = {
+					"defaultValue:" }) String dataShape,
+			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
+					"defaultValue:RAW" }) String dateFormat,
+			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Return up to this many of the values that couldn't be converted with the result", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors)
+			throws Exception {
 
-		if (dataShape == null || dataShape.isEmpty()) {
-			it = new InfoTable();
-		} else {
-			hasShape = true;
+		if (json == null || json.trim().isEmpty()) {
+			throw new InvalidRequestException("JSON Array must be specified",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		ParseStatistics.Call call = _statistics.start("ParseJSONArray");
+		ParseExecutor.Admission admission = admit(call, json.length());
+		try {
+			boolean tolerant = maxErrors != null && maxErrors > 0;
+			ParseErrors errors = new ParseErrors(tolerant ? maxErrors : 0, _logger);
+			ParseContext context = jsonContext(dateFormat, minDateMilliseconds, errors, call);
+			call.bytesRead(json.length());
+			long start = System.nanoTime();
+			JSONTokenizer tokens = new JSONTokenizer(new StringReader(json));
+			if (tokens.peek() != JSONTokenizer.BEGIN_ARRAY) {
+				throw new InvalidRequestException("JSON Must Be An Array",
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+			}
+			JSONArray array = (JSONArray) tokens.readValue();
+			call.time(ParseStatistics.Phase.TOKENIZE, start);
+			InfoTable it = parseJSONArray(context, array, dataShape, tolerant);
+			errors.logSummary("JSON");
+			call.succeeded(it.getRowCount());
+			return tolerant ? withErrors(it, errors) : it;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	// splits the array into blocks and converts each block into a table of its own
+	// on the parse pool, each with the union of its elements' keys. The field types
+	// of the blocks are then merged the way the chunk types of a parallel ParseCSV
+	// are, and the rows are added in array order, converted where their block typed
+	// a field differently. An element that can't be converted fails the parse unless
+	// it is tolerant, when it is left out and reported
+	protected InfoTable parseJSONArray(final ParseContext context, final JSONArray array, final String dataShape,
+			final boolean tolerant) throws Exception {
+		int length = array.length();
+		int blockSize = Math.max(MIN_JSON_BLOCK, length / (getExecutor().getParallelism() * 4) + 1);
+		ArrayList<Callable<InfoTable>> tasks = new ArrayList<Callable<InfoTable>>();
+		for (int from = 0; from < length; from += blockSize) {
+			final int first = from;
+			final int last = Math.min(length, from + blockSize);
+			tasks.add(new Callable<InfoTable>() {
+				@Override
+				public InfoTable call() throws Exception {
+					long start = System.nanoTime();
+					InfoTable block = newJSONTable(dataShape);
+					try {
+						for (int i = first; i < last; i++) {
+							Object item = array.get(i);
+							try {
+								addJSONArrayItem(context, block, item, i - first);
+							} catch (Exception e) {
+								if (!tolerant) {
+									throw e;
+								}
+								recordJSONError(context, item, e);
+							}
+						}
+					} finally {
+						context.stats.time(ParseStatistics.Phase.CONVERT, start);
+					}
+					return block;
+				}
+			});
+		}
+		if (tasks.isEmpty()) {
+			return newJSONTable(dataShape);
+		}
+		ArrayList<InfoTable> blocks = tasks.size() == 1 ? new ArrayList<InfoTable>(Arrays.asList(tasks.get(0).call()))
+				: runInOrder(tasks);
+
+		long start = System.nanoTime();
+		InfoTable it = newJSONTable(dataShape);
+		for (InfoTable block : blocks) {
+			for (FieldDefinition field : block.getDataShape().getFields().getOrderedFieldsByOrdinal()) {
+				if (!it.hasField(field.getName())) {
+					FieldDefinition merged = field.clone();
+					merged.setOrdinal(it.getDataShape().getFields().size());
+					it.addField(merged);
+					continue;
+				}
+				FieldDefinition merged = it.getField(field.getName());
+				BaseTypes type = mergeFieldType(merged.getBaseType(), field.getBaseType());
+				if (type != merged.getBaseType()) {
+					context.stats.fallback();
+					merged.setBaseType(type);
+				}
+			}
+		}
+		for (InfoTable block : blocks) {
+			ArrayList<String> converted = new ArrayList<String>();
+			for (FieldDefinition field : block.getDataShape().getFields().values()) {
+				if (field.getBaseType() != it.getField(field.getName()).getBaseType()) {
+					converted.add(field.getName());
+				}
+			}
+			for (ValueCollection values : block.getRows()) {
+				for (String name : converted) {
+					IPrimitiveType<?, ?> value = values.get(name);
+					if (value != null && value.getValue() != null) {
+						values.put(name,
+								BaseTypes.ConvertToPrimitive(value.getValue(), it.getField(name).getBaseType()));
+					}
+				}
+				it.addRow(values);
+			}
+		}
+		context.stats.time(ParseStatistics.Phase.ADD_ROW, start);
+		return it;
+	}
+
+	@ThingworxServiceDefinition(name = "ParseJSONFile", description = "Parse a JSON file from a repository as it is read, without building the whole document first")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseJSONFile(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME", aspects = {
+					"defaultValue:" }) String dataShape,
+			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
+					"defaultValue:RAW" }) String dateFormat,
+			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "arrayPath", description = "Dotted names of the array to return a row per element of, e.g. response.items, the whole document if empty", baseType = "STRING") String arrayPath,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Return up to this many of the values that couldn't be converted with the result", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		ParseStatistics.Call call = _statistics.start("ParseJSONFile");
+		long size = getFileSize(repo, path);
+		ParseExecutor.Admission admission = admit(call, size);
+		try {
+			ParseErrors errors = new ParseErrors(maxErrors != null ? maxErrors : 0, _logger);
+			ParseContext context = jsonContext(dateFormat, minDateMilliseconds, errors, call);
+			call.bytesRead(size);
+			// JSON files are UTF-8
+			Reader reader = new InputStreamReader(openFileStream(context, repo, fileRepository, path),
+					Charset.forName("UTF-8"));
+			InfoTable it;
 			try {
-				it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
-			} catch (Exception e) {
-				throw new InvalidRequestException("DataShape not found",
+				it = parseJSONFile(context, new JSONTokenizer(reader), dataShape, arrayPath);
+			} finally {
+				try {
+					reader.close();
+				} catch (Exception eClose) {
+				}
+			}
+			errors.logSummary(path);
+			call.succeeded(it.getRowCount());
+			return maxErrors != null && maxErrors > 0 ? withErrors(it, errors) : it;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	// the same result ParseJSON gives for the document, built as it is read. Only one
+	// member of the top level object, or one element of an array that is a member, is
+	// held as org.json values at a time. With an arrayPath the rest of the document
+	// is skipped and the result is a row per element of that array
+	protected InfoTable parseJSONFile(ParseContext context, JSONTokenizer tokens, String dataShape, String arrayPath)
+			throws Exception {
+		boolean hasShape = dataShape != null && !dataShape.isEmpty();
+		if (arrayPath != null && !arrayPath.isEmpty()) {
+			for (String name : arrayPath.split("\\.")) {
+				if (!findJSONMember(tokens, name.trim())) {
+					throw new InvalidRequestException("Array Path [" + arrayPath + "] Does Not Exist",
+							RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+				}
+			}
+			if (tokens.peek() != JSONTokenizer.BEGIN_ARRAY) {
+				throw new InvalidRequestException("Array Path [" + arrayPath + "] Is Not An Array",
 						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 			}
-			;
+			return readJSONArray(context, tokens, newJSONTable(dataShape));
+		}
+		if (tokens.peek() == JSONTokenizer.BEGIN_ARRAY) {
+			return readJSONArray(context, tokens, newJSONTable(dataShape));
+		}
+		if (tokens.peek() != JSONTokenizer.BEGIN_OBJECT) {
+			throw new InvalidRequestException("JSON File Must Hold An Object Or An Array",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 		}
-		;
 
-		// this is the equivalent of an InfoTable row item
+		InfoTable it = newJSONTable(dataShape);
 		JSONObject values = new JSONObject();
-		Iterator<?> keys = json.keys();
-
-		while (keys.hasNext()) {
+		int ord = 0;
+		tokens.beginObject();
+		while (tokens.hasNext()) {
+			String key = tokens.nextName();
+			if (tokens.peek() == JSONTokenizer.BEGIN_ARRAY) {
+				String fieldShape = it.hasField(key) ? it.getField(key).getDataShapeName() : null;
+				InfoTable items = readJSONArray(context, tokens, jsonArrayTable(fieldShape));
+				if (!hasShape || !it.hasField(key)) {
+					addField(it, key, BaseTypes.INFOTABLE, ord);
+				}
+				if (items != null) {
+					values.put(key, BaseTypes.ConvertToPrimitive(items, BaseTypes.INFOTABLE));
+				}
+			} else {
+				long start = System.nanoTime();
+				Object value = tokens.readValue();
+				start = context.stats.time(ParseStatistics.Phase.TOKENIZE, start);
+				addJSONField(context, it, values, key, value, hasShape, ord);
+				context.stats.time(ParseStatistics.Phase.CONVERT, start);
+			}
+			ord++;
+		}
+		tokens.endObject();
+		it.AddRow(values);
+		return it;
+	}
 
-			String key = (String) keys.next();
-			Object value = json.get(key);
-			String fieldShape = null;
+	// moves into the object the tokenizer is at, up to the value of member name
+	private static boolean findJSONMember(JSONTokenizer tokens, String name) throws Exception {
+		if (tokens.peek() != JSONTokenizer.BEGIN_OBJECT) {
+			return false;
+		}
+		tokens.beginObject();
+		while (tokens.hasNext()) {
+			if (tokens.nextName().equals(name)) {
+				return true;
+			}
+			tokens.skipValue();
+		}
+		return false;
+	}
 
-			// only create a new field if one hasnt already been added to the infotable for
-			// this field
+	// the elements of the array the tokenizer is at, added to result the way
+	// parseJSONValue adds the elements of a JSONArray. Like parseJSONValue it returns
+	// null when an element can't be converted
+	private InfoTable readJSONArray(ParseContext context, JSONTokenizer tokens, InfoTable result) throws Exception {
+		tokens.beginArray();
+		int i = 0;
+		boolean failed = false;
+		while (tokens.hasNext()) {
+			if (failed) {
+				tokens.skipValue();
+				continue;
+			}
+			long start = System.nanoTime();
+			Object item = tokens.readValue();
+			start = context.stats.time(ParseStatistics.Phase.TOKENIZE, start);
 			try {
-				fieldShape = it.getField(key).getDataShapeName();
+				addJSONArrayItem(context, result, item, i++);
 			} catch (Exception e) {
+				recordJSONError(context, item, e);
+				failed = true;
 			}
-			BaseTypes baseType = BaseTypes.STRING;
-			if (!hasShape || !it.hasField(key)) {
-				baseType = getType(value);
-				FieldDefinition field = new FieldDefinition();
-				field.setName(key);
-				field.setOrdinal(ord);
-				field.setBaseType(baseType);
-				it.addField(field);
+			context.stats.time(ParseStatistics.Phase.CONVERT, start);
+		}
+		tokens.endArray();
+		return failed ? null : result;
+	}
+
+	private InfoTable newJSONTable(String dataShape) throws Exception {
+		if (dataShape == null || dataShape.isEmpty()) {
+			return new InfoTable();
+		}
+		try {
+			return InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+		} catch (Exception e) {
+			throw new InvalidRequestException("DataShape not found", RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+	}
+
+	// the table a JSONArray is converted into, from its field's data shape if it has one
+	private InfoTable jsonArrayTable(String fieldShape) {
+		InfoTable result = new InfoTable();
+		try {
+			result = InfoTableInstanceFactory.createInfoTableFromDataShape(fieldShape);
+		} catch (Exception e) {
+		}
+		return result;
+	}
+
+	@ThingworxServiceDefinition(name = "ParseNDJSON", description = "Parse a newline delimited JSON file from a repository, a row per line")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseNDJSON(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME", aspects = {
+					"defaultValue:" }) String dataShape,
+			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
+					"defaultValue:RAW" }) String dateFormat,
+			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "offset", description = "Number of lines to skip", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer offset,
+			@ThingworxServiceParameter(name = "limit", description = "Maximum number of rows to return, 0 for all of them", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer limit,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Skip lines that aren't JSON objects and return up to this many of the problems with the result", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		ParseStatistics.Call call = _statistics.start("ParseNDJSON");
+		int first = offset != null ? Math.max(offset, 0) : 0;
+		int count = limit != null ? Math.max(limit, 0) : 0;
+		// a page only holds its own rows
+		ParseExecutor.Admission admission = admit(call, count > 0 ? 0 : getFileSize(repo, path));
+		try {
+			boolean tolerant = maxErrors != null && maxErrors > 0;
+			ParseErrors errors = new ParseErrors(tolerant ? maxErrors : 0, _logger);
+			ParseContext context = jsonContext(dateFormat, minDateMilliseconds, errors, call);
+			InfoTable it = newJSONTable(dataShape);
+			FileInputStream stream = openFileStream(context, repo, fileRepository, path);
+			try {
+				NDJSONReader reader = new NDJSONReader(stream, 0, false);
+				int skipped = 0;
+				while (skipped < first && reader.skipLine()) {
+					skipped++;
+				}
+				readNDJSON(context, reader, it, null, 0, count, tolerant);
+				call.bytesRead(reader.getOffset());
+			} finally {
+				try {
+					stream.close();
+				} catch (Exception eClose) {
+				}
+			}
+			errors.logSummary(path);
+			call.succeeded(it.getRowCount());
+			return tolerant ? withErrors(it, errors) : it;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "ParseNDJSONToEntity", description = "Parse a newline delimited JSON file from a repository straight into a Stream or DataTable")
+	@ThingworxServiceResult(name = "result", description = "Number of rows written", baseType = "NUMBER")
+	public Double ParseNDJSONToEntity(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "targetEntity", description = "Stream or DataTable to write the rows to", baseType = "THINGNAME") String targetEntity,
+			@ThingworxServiceParameter(name = "batchSize", description = "Number of rows written per call to the target", baseType = "INTEGER", aspects = {
+					"defaultValue:500" }) Integer batchSize,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape, defaults to the data shape of the target", baseType = "DATASHAPENAME") String dataShape,
+			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
+					"defaultValue:RAW" }) String dateFormat,
+			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Skip lines that aren't JSON objects instead of failing once this is above 0", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		ParseStatistics.Call call = _statistics.start("ParseNDJSONToEntity");
+		ParseExecutor.Admission admission = admit(call, 0);
+		try {
+			Thing target = null;
+			if (targetEntity != null && !targetEntity.isEmpty()) {
+				target = ThingUtilities.findThing(targetEntity);
+			}
+			if (target == null) {
+				throw new InvalidRequestException("Target Entity [" + targetEntity + "] Does Not Exist",
+						RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+			}
+			if (!EntityRowSink.canWriteTo(target)) {
+				throw new InvalidRequestException("Thing [" + targetEntity + "] Is Not A Stream Or DataTable",
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 			}
-			ord++;
 
-			// if I am not able to parse a JSON value at all, return an error for that field
-			// this should really never happen, if it does something went horribly wrong
+			// rows go to the entity, so the lines are converted against a data shape
+			if (dataShape == null || dataShape.isEmpty()) {
+				dataShape = EntityRowSink.getDataShapeName(target);
+			}
+			boolean tolerant = maxErrors != null && maxErrors > 0;
+			ParseErrors errors = new ParseErrors(tolerant ? maxErrors : 0, _logger);
+			ParseContext context = jsonContext(dateFormat, minDateMilliseconds, errors, call);
+			InfoTable it = newJSONTable(dataShape);
+			EntityRowSink sink = new EntityRowSink(target, it.getDataShape(), batchSize != null ? batchSize : 500);
+			FileInputStream stream = openFileStream(context, repo, fileRepository, path);
 			try {
-				value = parseJSONValue(value, fieldShape);
-			} catch (Exception e) {
-				it.getField(key).setBaseType(BaseTypes.STRING);
-				((JSONObject) value).put("ERROR", BaseTypes.STRING);
-			}
-			// if the value was parsed correctly, but bombs out when converting it to the
-			// given base type for the field
-			// this will retroactively change the base type on the dataShape to a string
-			// this usually happens if the first value was a number and a later value for
-			// the same field is a string
+				NDJSONReader reader = new NDJSONReader(stream, 0, false);
+				readNDJSON(context, reader, it, sink, 0, 0, tolerant);
+				call.bytesRead(reader.getOffset());
+			} finally {
+				try {
+					stream.close();
+				} catch (Exception eClose) {
+				}
+			}
+			sink.flush();
+			errors.logSummary(path);
+			call.succeeded(sink.getRowsWritten());
+			return (double) sink.getRowsWritten();
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "ParseNDJSONIncremental", description = "Parse the lines appended to a newline delimited JSON file in a repository since the last call")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseNDJSONIncremental(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME", aspects = {
+					"defaultValue:" }) String dataShape,
+			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
+					"defaultValue:RAW" }) String dateFormat,
+			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Skip lines that aren't JSON objects and return up to this many of the problems with the result", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors,
+			@ThingworxServiceParameter(name = "restart", description = "Forget the last position and parse the file from the top", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean restart)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		String key = cacheParameters("NDJSON", fileRepository, path, dataShape, dateFormat, minDateMilliseconds);
+		CSVTail tail;
+		synchronized (_tails) {
+			tail = _tails.get(key);
+			if (tail == null) {
+				tail = new CSVTail();
+				_tails.put(key, tail);
+			}
+		}
+
+		boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+		boolean tolerant = maxErrors != null && maxErrors > 0;
+		ParseStatistics.Call call = _statistics.start("ParseNDJSONIncremental");
+		ParseErrors errors = new ParseErrors(tolerant ? maxErrors : 0, _logger);
+		ParseContext context = jsonContext(dateFormat, minDateMilliseconds, errors, call);
+
+		FileInputStream stream;
+		try {
+			stream = openFileStream(context, repo, fileRepository, path);
+		} catch (Exception e) {
+			call.end();
+			throw e;
+		}
+		try {
+			FileChannel channel = stream.getChannel();
+			// admitted before the tail is locked, as ParseCSVIncremental is
+			long size = channel.size();
+			boolean fromTop = (restart != null && restart) || tail.offset > size;
+			ParseExecutor.Admission admission = admit(call, fromTop ? size : size - tail.offset);
 			try {
-				values.put(key, BaseTypes.ConvertToPrimitive(value, baseType));
-			} catch (Exception e) {
-				it.getField(key).setBaseType(BaseTypes.STRING);
-				values.put(key, BaseTypes.ConvertToPrimitive(value, BaseTypes.STRING));
+				synchronized (tail) {
+					if ((restart != null && restart) || !tail.isCurrent(channel)) {
+						tail.reset();
+					}
+					long start = tail.offset;
+					// the fields inferred so far carry over, new keys and widened types are
+					// kept for the next call
+					InfoTable it = newJSONTable(dataShape);
+					if (!hasDatashape && tail.shape != null) {
+						it = new InfoTable(tail.shape.clone());
+					}
+					channel.position(start);
+					// a last line without a line ending may still be being written
+					NDJSONReader reader = new NDJSONReader(stream, start, true);
+					readNDJSON(context, reader, it, null, tail.rowNumber, 0, tolerant);
+					call.bytesRead(reader.getOffset() - start);
+
+					// only a parse that got through every new line moves the offset
+					if (!hasDatashape) {
+						tail.shape = it.getDataShape().clone();
+					}
+					tail.commit(channel, reader.getOffset(), reader.getLineCount());
+					errors.logSummary(path);
+					call.succeeded(it.getRowCount());
+					return tolerant ? withErrors(it, errors) : it;
+				}
+			} finally {
+				admission.release();
+			}
+		} finally {
+			try {
+				stream.close();
+			} catch (Exception eClose) {
+			}
+			call.end();
+		}
+	}
+
+	// converts the lines of reader into rows of it, or sends them to sink when there
+	// is one, up to limit rows or all of them for 0. Every line is parsed on its own
+	// with the type rules of ParseJSON; a line that isn't a JSON object fails the
+	// parse unless it is tolerant, when it is skipped and counted as an error
+	private long readNDJSON(ParseContext context, NDJSONReader reader, InfoTable it, RowSink sink, int firstRow,
+			long limit, boolean tolerant) throws Exception {
+		long rows = 0;
+		long start = System.nanoTime();
+		String line;
+		while ((limit <= 0 || rows < limit) && (line = reader.readLine()) != null) {
+			int row = firstRow + reader.getLineCount() - 1;
+			JSONObject item;
+			try {
+				JSONTokenizer tokens = new JSONTokenizer(new StringReader(line));
+				if (tokens.peek() != JSONTokenizer.BEGIN_OBJECT) {
+					throw new InvalidRequestException("Not A JSON Object",
+							RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+				}
+				item = (JSONObject) tokens.readValue();
+				// fails if anything but whitespace follows the object
+				tokens.peek();
+			} catch (InvalidRequestException e) {
+				if (!tolerant) {
+					throw new InvalidRequestException("Line " + (row + 1) + " - " + e.getMessage(),
+							RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+				}
+				context.errors.add(row, null, line, String.valueOf(e.getMessage()));
+				start = context.stats.time(ParseStatistics.Phase.TOKENIZE, start);
+				continue;
+			}
+			start = context.stats.time(ParseStatistics.Phase.TOKENIZE, start);
+			ValueCollection values = convertJSONObject(context, it, item, row, sink != null);
+			start = context.stats.time(ParseStatistics.Phase.CONVERT, start);
+			if (sink != null) {
+				sink.addRow(values);
+			} else {
+				it.addRow(values);
 			}
+			start = context.stats.time(ParseStatistics.Phase.ADD_ROW, start);
+			rows++;
+		}
+		return rows;
+	}
+
+	// ParseJSON in flatten mode, a row per row of the JSONFlattener with the fields
+	// and types of all of them unioned the way the elements of an array are
+	protected InfoTable parseJSONFlat(ParseContext context, JSONObject json, String dataShape, boolean explodeArrays)
+			throws Exception {
+		InfoTable it = newJSONTable(dataShape);
+		JSONFlattener rows = new JSONFlattener(json, explodeArrays);
+		JSONObject row;
+		while ((row = rows.next()) != null) {
+			it.addRow(convertJSONObject(context, it, row, it.getRowCount(), false));
+		}
+		return it;
+	}
+
+	protected InfoTable parseJSON(ParseContext context, JSONObject json, String dataShape) throws Exception {
+		// this tracks the ordinal of the fields in the datashape; this is only used if
+		// no datashape is passed in
+		int ord = 0;
+		boolean hasShape = dataShape != null && !dataShape.isEmpty();
+		InfoTable it = newJSONTable(dataShape);
+
+		// this is the equivalent of an InfoTable row item
+		JSONObject values = new JSONObject();
+		Iterator<?> keys = json.keys();
+
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			addJSONField(context, it, values, key, json.get(key), hasShape, ord);
+			ord++;
 		}
 		it.AddRow(values);
 		return it;
 
 	}
 
+	// converts one member of a JSON object into the row values, adding a field for it
+	// unless the data shape has one
+	protected void addJSONField(ParseContext context, InfoTable it, JSONObject values, String key, Object value,
+			boolean hasShape, int ord) throws Exception {
+		String fieldShape = null;
+		// only create a new field if one hasnt already been added to the infotable for
+		// this field
+		try {
+			fieldShape = it.getField(key).getDataShapeName();
+		} catch (Exception e) {
+		}
+		BaseTypes baseType = BaseTypes.STRING;
+		if (!hasShape || !it.hasField(key)) {
+			baseType = getType(context, value);
+			FieldDefinition field = new FieldDefinition();
+			field.setName(key);
+			field.setOrdinal(ord);
+			field.setBaseType(baseType);
+			it.addField(field);
+		}
+
+		// if I am not able to parse a JSON value at all, return an error for that field
+		// this should really never happen, if it does something went horribly wrong
+		try {
+			value = parseJSONValue(context, value, fieldShape);
+		} catch (Exception e) {
+			it.getField(key).setBaseType(BaseTypes.STRING);
+			((JSONObject) value).put("ERROR", BaseTypes.STRING);
+		}
+		// if the value was parsed correctly, but bombs out when converting it to the
+		// given base type for the field
+		// this will retroactively change the base type on the dataShape to a string
+		// this usually happens if the first value was a number and a later value for
+		// the same field is a string
+		try {
+			values.put(key, BaseTypes.ConvertToPrimitive(value, baseType));
+		} catch (Exception e) {
+			it.getField(key).setBaseType(BaseTypes.STRING);
+			values.put(key, BaseTypes.ConvertToPrimitive(value, BaseTypes.STRING));
+		}
+	}
+
 	@ThingworxServiceDefinition(name = "ParseCSV", description = "Parse CSV file from a repository")
 	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
 	public InfoTable ParseCSV(
@@ -176,13 +823,1316 @@ public class Parsley extends Resource {
 					"defaultValue:," }) String fieldDelimiter,
 			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
 					"defaultValue:\"" }) String stringDelimiter,
-			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use if there is no datashape", baseType = "STRING") String customHeaders)
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use if there is no datashape", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "columns", description = "Comma seperated list of field names to keep if there is no datashape, other columns are skipped", baseType = "STRING") String columns,
+			@ThingworxServiceParameter(name = "parallel", description = "Split large files into chunks and parse them on all cores", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean parallel,
+			@ThingworxServiceParameter(name = "filter", description = "Only keep rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Tolerate bad values and rows and return up to this many of them with the result, 0 to fail on the first one", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors)
 			throws Exception {
 
-		_hasHeader = hasHeader;
-		_dateFormat = dateFormat;
-		_customHeaders = customHeaders;
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		FileKey file = FileKey.of(repo, fileRepository, path);
+		String parameters = cacheParameters("ParseCSV", dataShape, hasHeader, columnMappings, latitudeField,
+				longitudeField, dateFormat, fieldDelimiter, stringDelimiter, customHeaders, columns, filter, maxErrors);
+		ParseStatistics.Call call = _statistics.start("ParseCSV");
+		InfoTable cached = getResultCache().get(file, parameters);
+		if (cached != null) {
+			call.cacheHit();
+			call.succeeded(cached.getRowCount());
+			call.end();
+			return cached;
+		}
+
+		ParseExecutor.Admission admission = admit(call, getFileSize(repo, path));
+		try {
+			InfoTable it = new InfoTable();
+
+			boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+			if (hasDatashape) {
+				it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+			}
+			ParseErrors errors = maxErrors != null && maxErrors > 0 ? new ParseErrors(maxErrors, _logger) : null;
+			ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, hasDatashape,
+					hasHeader != null && hasHeader, customHeaders, columns, RowFilter.parse(filter, dateFormat),
+					errors, call);
+			String settings = csvSchemaSettings(context, fieldDelimiter, stringDelimiter, 0);
+			if (!hasDatashape) {
+				loadInferredShape(context, it, file, settings);
+			}
+			call.bytesRead(file.size);
+			try {
+				if (parallel != null && parallel && CSVChunker.canSplit(Charset.defaultCharset(),
+						delimiterChar(fieldDelimiter, "fieldDelimiter"),
+						delimiterChar(stringDelimiter, "stringDelimiter"))) {
+					parseFromFileParallel(context, openFileStream(context, repo, fileRepository, path), it,
+							columnMappings, fieldDelimiter, stringDelimiter, latitudeField, longitudeField, dateFormat);
+				} else {
+					parseCSVFile(context, repo, fileRepository, path, it, columnMappings, fieldDelimiter,
+							stringDelimiter, latitudeField, longitudeField, dateFormat, null);
+				}
+			} catch (IndexOutOfBoundsException e) {
+				throw columnCountMismatch(e);
+			}
+			if (!hasDatashape) {
+				_schemaCache.put(file, settings, it.getDataShape());
+			}
+			call.succeeded(it.getRowCount());
+			if (errors != null) {
+				errors.logSummary(path);
+				it = withErrors(it, errors);
+			}
+			getResultCache().put(file, parameters, it);
+			return it;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	// without a data shape we scan the file once to settle the field types, then
+	// convert every row exactly once on the second pass. The first pass is skipped
+	// when the fields came from the schema cache. When job is set both passes read
+	// the file through it, so the job can report progress and stop the parse
+	protected void parseCSVFile(ParseContext context, FileRepositoryThing repo, String fileRepository, String path,
+			final InfoTable it, String columnMappings, String fieldDelimiter, String stringDelimiter,
+			Double latitudeField, Double longitudeField, String dateFormat, final ParseJob job) throws Exception {
+		parseCSVFile(context, repo, fileRepository, path, it, new RowSink() {
+			@Override
+			public void addRow(ValueCollection values) throws Exception {
+				it.addRow(values);
+			}
+		}, columnMappings, fieldDelimiter, stringDelimiter, latitudeField, longitudeField, dateFormat, job);
+	}
+
+	// the rows are converted against the fields of it and handed to sink
+	protected void parseCSVFile(ParseContext context, FileRepositoryThing repo, String fileRepository, String path,
+			InfoTable it, final RowSink sink, String columnMappings, String fieldDelimiter, String stringDelimiter,
+			Double latitudeField, Double longitudeField, String dateFormat, final ParseJob job) throws Exception {
+		if (needsInference(context, it)) {
+			if (job != null) {
+				job.startPhase("Inferring");
+			}
+			inferFromReader(context, openFileReader(context, repo, fileRepository, path, job), it, fieldDelimiter,
+					stringDelimiter);
+		}
+		if (job == null) {
+			parseFromReader(context, openFileReader(context, repo, fileRepository, path, null), it, sink,
+					columnMappings, fieldDelimiter, stringDelimiter, latitudeField, longitudeField, dateFormat);
+			return;
+		}
+		job.startPhase("Parsing");
+		parseFromReader(context, openFileReader(context, repo, fileRepository, path, job), it, new RowSink() {
+			@Override
+			public void addRow(ValueCollection values) throws Exception {
+				sink.addRow(values);
+				job.rowParsed();
+			}
+		}, columnMappings, fieldDelimiter, stringDelimiter, latitudeField, longitudeField, dateFormat);
+	}
+
+	@ThingworxServiceDefinition(name = "ParseCSVPage", description = "Parse one page of rows from a CSV file in a repository")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseCSVPage(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "offset", description = "Number of data rows to skip", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer offset,
+			@ThingworxServiceParameter(name = "limit", description = "Maximum number of rows to return", baseType = "INTEGER", aspects = {
+					"defaultValue:100" }) Integer limit,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME") String dataShape,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "columnMappings", description = "Column maps", baseType = "STRING") String columnMappings,
+			@ThingworxServiceParameter(name = "latitudeField", description = "Latitude field index", baseType = "NUMBER") Double latitudeField,
+			@ThingworxServiceParameter(name = "longitudeField", description = "Longitude field index", baseType = "NUMBER") Double longitudeField,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter,
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use if there is no datashape", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "columns", description = "Comma seperated list of field names to keep if there is no datashape, other columns are skipped", baseType = "STRING") String columns)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		ParseStatistics.Call call = _statistics.start("ParseCSVPage");
+		ParseExecutor.Admission admission = admit(call, 0);
+		try {
+			InfoTable it = new InfoTable();
+
+			boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+			if (hasDatashape) {
+				it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+			}
+			ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, hasDatashape,
+					hasHeader != null && hasHeader, customHeaders, columns, null, null, call);
+			char fieldChar = delimiterChar(fieldDelimiter, "fieldDelimiter");
+			char quoteChar = delimiterChar(stringDelimiter, "stringDelimiter");
+			int first = (offset != null ? Math.max(offset, 0) : 0) + (context.hasHeader ? 1 : 0);
+			int count = limit != null ? limit : 100;
+
+			// the index needs to find record boundaries in the raw bytes, otherwise we
+			// read from the top like ParseCSV does
+			CSVRowIndex index = null;
+			if (CSVChunker.canSplit(Charset.defaultCharset(), fieldChar, quoteChar)) {
+				index = getRowIndex(repo, fileRepository, path, quoteChar);
+			}
+
+			try {
+				if (!hasDatashape) {
+					FileKey file = FileKey.of(repo, fileRepository, path);
+					String settings = csvSchemaSettings(context, fieldDelimiter, stringDelimiter, 0);
+					if (!loadInferredShape(context, it, file, settings)) {
+						inferFromReader(context, openFileReader(context, repo, fileRepository, path, null), it,
+								fieldDelimiter, stringDelimiter);
+						_schemaCache.put(file, settings, it.getDataShape());
+					}
+				}
+
+				HashMap<String, Integer> columnIndices = getColumnIndices(context, it, columnMappings);
+				int latitudeCol = latitudeField != null ? latitudeField.intValue() : -1;
+				int longitudeCol = longitudeField != null ? longitudeField.intValue() : -1;
+				boolean[] keep = getColumnMask(columnIndices, latitudeCol, longitudeCol);
+
+				FileInputStream stream = openFileStream(context, repo, fileRepository, path);
+				try {
+					int rowNumber = 0;
+					if (index != null) {
+						rowNumber = index.indexedRow(first);
+						stream.getChannel().position(index.offsetOf(rowNumber));
+					}
+					long start = System.nanoTime();
+					CSVTokenizer tokenizer = new CSVTokenizer(new InputStreamReader(stream), fieldChar, quoteChar);
+					ArrayList<String> fieldValues = new ArrayList<String>();
+					// rows before the page are only scanned for their boundaries
+					boolean[] skip = new boolean[0];
+					while (rowNumber < first && tokenizer.readRow(fieldValues, skip)) {
+						rowNumber++;
+					}
+					int added = 0;
+					while (added < count && tokenizer.readRow(fieldValues, keep)) {
+						start = call.time(ParseStatistics.Phase.TOKENIZE, start);
+						ValueCollection values = processFieldSet(context, it, fieldValues, columnIndices, latitudeCol,
+								longitudeCol, dateFormat, rowNumber);
+						start = call.time(ParseStatistics.Phase.CONVERT, start);
+						if (values != null) {
+							it.addRow(values);
+							added++;
+							start = call.time(ParseStatistics.Phase.ADD_ROW, start);
+						}
+						rowNumber++;
+					}
+				} finally {
+					try {
+						stream.close();
+					} catch (Exception eClose) {
+					}
+				}
+			} catch (IndexOutOfBoundsException e) {
+				throw columnCountMismatch(e);
+			}
+			call.succeeded(it.getRowCount());
+			return it;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "ParseCSVToEntity", description = "Parse a CSV file from a repository straight into a Stream or DataTable")
+	@ThingworxServiceResult(name = "result", description = "Number of rows written", baseType = "NUMBER")
+	public Double ParseCSVToEntity(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "targetEntity", description = "Stream or DataTable to write the rows to", baseType = "THINGNAME") String targetEntity,
+			@ThingworxServiceParameter(name = "batchSize", description = "Number of rows written per call to the target", baseType = "INTEGER", aspects = {
+					"defaultValue:500" }) Integer batchSize,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape, defaults to the data shape of the target", baseType = "DATASHAPENAME") String dataShape,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "columnMappings", description = "Column maps", baseType = "STRING") String columnMappings,
+			@ThingworxServiceParameter(name = "latitudeField", description = "Latitude field index", baseType = "NUMBER") Double latitudeField,
+			@ThingworxServiceParameter(name = "longitudeField", description = "Longitude field index", baseType = "NUMBER") Double longitudeField,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		ParseStatistics.Call call = _statistics.start("ParseCSVToEntity");
+		ParseExecutor.Admission admission = admit(call, 0);
+		try {
+			Thing target = null;
+			if (targetEntity != null && !targetEntity.isEmpty()) {
+				target = ThingUtilities.findThing(targetEntity);
+			}
+			if (target == null) {
+				throw new InvalidRequestException("Target Entity [" + targetEntity + "] Does Not Exist",
+						RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+			}
+			if (!EntityRowSink.canWriteTo(target)) {
+				throw new InvalidRequestException("Thing [" + targetEntity + "] Is Not A Stream Or DataTable",
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+			}
+
+			// rows go to the entity, so the parse always runs against a data shape
+			if (dataShape == null || dataShape.isEmpty()) {
+				dataShape = EntityRowSink.getDataShapeName(target);
+			}
+			InfoTable it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+			ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, true,
+					hasHeader != null && hasHeader, null, null, null, null, call);
+
+			EntityRowSink sink = new EntityRowSink(target, it.getDataShape(), batchSize != null ? batchSize : 500);
+			call.bytesRead(getFileSize(repo, path));
+			try {
+				parseFromReader(context, openFileReader(context, repo, fileRepository, path, null), it, sink,
+						columnMappings, fieldDelimiter, stringDelimiter, latitudeField, longitudeField, dateFormat);
+			} catch (IndexOutOfBoundsException e) {
+				throw columnCountMismatch(e);
+			}
+			sink.flush();
+			call.succeeded(sink.getRowsWritten());
+			return (double) sink.getRowsWritten();
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "GetCSVRowCount", description = "Number of data rows in a CSV file in a repository")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INTEGER")
+	public Integer GetCSVRowCount(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		char quoteChar = delimiterChar(stringDelimiter, "stringDelimiter");
+		ParseStatistics.Call call = _statistics.start("GetCSVRowCount");
+		ParseExecutor.Admission admission = admit(call, 0);
+		try {
+			int rows;
+			if (CSVChunker.canSplit(Charset.defaultCharset(), ',', quoteChar)) {
+				rows = getRowIndex(repo, fileRepository, path, quoteChar).rowCount;
+			} else {
+				rows = 0;
+				Reader reader = openFileReader(repo, fileRepository, path);
+				try {
+					CSVTokenizer tokenizer = new CSVTokenizer(reader, ',', quoteChar);
+					ArrayList<String> fieldValues = new ArrayList<String>();
+					boolean[] skip = new boolean[0];
+					while (tokenizer.readRow(fieldValues, skip)) {
+						rows++;
+					}
+				} finally {
+					try {
+						reader.close();
+					} catch (Exception eClose) {
+					}
+				}
+			}
+			call.bytesRead(getFileSize(repo, path));
+			if (hasHeader != null && hasHeader && rows > 0) {
+				rows--;
+			}
+			call.succeeded(rows);
+			return rows;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	// the single character of a delimiter parameter
+	private static char delimiterChar(String value, String name) throws Exception {
+		if (value == null || value.isEmpty()) {
+			throw new InvalidRequestException(name + " Must Be Specified",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		return value.charAt(0);
+	}
+
+	@ThingworxServiceDefinition(name = "ParseCSVAggregate", description = "Group the rows of a CSV file in a repository and return one row of aggregates per group")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseCSVAggregate(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter,
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use instead of the header", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "groupBy", description = "Comma seperated list of fields to group the rows by, every row is in one group if empty", baseType = "STRING") String groupBy,
+			@ThingworxServiceParameter(name = "aggregates", description = "Comma seperated aggregates, e.g. count, max(temperature), avg(temperature) as meanTemperature - count, sum, min, max, avg, first and last", baseType = "STRING", aspects = {
+					"defaultValue:count" }) String aggregates,
+			@ThingworxServiceParameter(name = "filter", description = "Only aggregate rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		CSVAggregator.Aggregate[] functions = CSVAggregator.parse(aggregates != null ? aggregates : "");
+		String[] groupFields = groupBy != null && !groupBy.trim().isEmpty() ? groupBy.split(",") : new String[0];
+		for (int i = 0; i < groupFields.length; i++) {
+			groupFields[i] = groupFields[i].trim();
+		}
+
+		// only one accumulator per group is held, so the parse doesn't claim any heap
+		ParseStatistics.Call call = _statistics.start("ParseCSVAggregate");
+		ParseExecutor.Admission admission = admit(call, 0);
+		try {
+			ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, false,
+					hasHeader != null && hasHeader, customHeaders, null, RowFilter.parse(filter, dateFormat), null,
+					call);
+			char fieldChar = delimiterChar(fieldDelimiter, "fieldDelimiter");
+			char quoteChar = delimiterChar(stringDelimiter, "stringDelimiter");
+			call.bytesRead(getFileSize(repo, path));
+			Reader reader = openFileReader(context, repo, fileRepository, path, null);
+			long start = System.nanoTime();
+			long aggregating = 0;
+			CSVTokenizer tokenizer = new CSVTokenizer(reader, fieldChar, quoteChar);
+			int[] groupColumns = new int[groupFields.length];
+			CSVAggregator aggregator = new CSVAggregator(groupColumns, functions);
+			try {
+				ArrayList<String> fieldValues = new ArrayList<String>();
+				if (tokenizer.readRow(fieldValues)) {
+					InfoTable fields = new InfoTable();
+					createFields(context, fields, fieldValues);
+					HashMap<String, Integer> columnIndices = getColumnIndices(context, fields, null);
+					for (int i = 0; i < groupFields.length; i++) {
+						groupColumns[i] = aggregateColumn(columnIndices, groupFields[i]);
+					}
+					for (CSVAggregator.Aggregate function : functions) {
+						if (function.field != null) {
+							function.column = aggregateColumn(columnIndices, function.field);
+						}
+					}
+					// the filter may test any field, otherwise only the grouped and
+					// aggregated columns are read
+					boolean[] keep = null;
+					if (context.filter == null) {
+						HashMap<String, Integer> used = new HashMap<String, Integer>();
+						for (int i = 0; i < groupColumns.length; i++) {
+							used.put(groupFields[i], groupColumns[i]);
+						}
+						for (CSVAggregator.Aggregate function : functions) {
+							if (function.field != null) {
+								used.put(function.field, function.column);
+							}
+						}
+						keep = getColumnMask(used, -1, -1);
+					}
+					int rowNumber = 0;
+					do {
+						if ((rowNumber != 0 || !context.hasHeader) && (context.filter == null
+								|| context.filter.matches(fields, columnIndices, fieldValues))) {
+							long row = System.nanoTime();
+							aggregator.add(fieldValues, rowNumber);
+							aggregating += System.nanoTime() - row;
+						}
+						rowNumber++;
+					} while (tokenizer.readRow(fieldValues, keep));
+				}
+			} catch (IndexOutOfBoundsException e) {
+				throw columnCountMismatch(e);
+			} finally {
+				try {
+					reader.close();
+				} catch (Exception eClose) {
+				}
+				call.add(ParseStatistics.Phase.CONVERT, aggregating);
+				call.add(ParseStatistics.Phase.TOKENIZE, System.nanoTime() - start - aggregating);
+			}
+			InfoTable result = aggregateResult(context, groupFields, functions, aggregator.results());
+			call.succeeded(result.getRowCount());
+			return result;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	private int aggregateColumn(HashMap<String, Integer> columnIndices, String field) throws Exception {
+		Integer column = columnIndices.get(field);
+		if (column == null) {
+			throw new InvalidRequestException("Field [" + field + "] Does Not Exist",
+					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+		}
+		return column;
+	}
+
+	// the group-by fields and text aggregates are typed from the values that made
+	// it into the result, the other aggregates are numbers
+	private InfoTable aggregateResult(ParseContext context, String[] groupFields,
+			CSVAggregator.Aggregate[] functions, List<Object[]> rows) throws Exception {
+		int columns = groupFields.length + functions.length;
+		BaseTypes[] types = new BaseTypes[columns];
+		Arrays.fill(types, BaseTypes.VARIANT);
+		for (int i = 0; i < functions.length; i++) {
+			if (functions[i].isNumber()) {
+				types[groupFields.length + i] = functions[i].function.equals("count") ? BaseTypes.LONG
+						: BaseTypes.NUMBER;
+			}
+		}
+		for (Object[] row : rows) {
+			for (int i = 0; i < columns; i++) {
+				if (row[i] instanceof String && !((String) row[i]).isEmpty() && types[i] != BaseTypes.STRING) {
+					types[i] = mergeFieldType(types[i], getTypeFromString(context, (String) row[i]));
+				}
+			}
+		}
+
+		InfoTable it = new InfoTable();
+		String[] names = new String[columns];
+		for (int i = 0; i < columns; i++) {
+			names[i] = i < groupFields.length ? groupFields[i] : functions[i - groupFields.length].name;
+			if (types[i] == BaseTypes.VARIANT) {
+				types[i] = BaseTypes.STRING;
+			}
+			addField(it, names[i], types[i], i);
+		}
+		for (Object[] row : rows) {
+			ValueCollection values = new ValueCollection();
+			for (int i = 0; i < columns; i++) {
+				Object value = row[i];
+				if (value == null || (value instanceof String && ((String) value).isEmpty())) {
+					continue;
+				}
+				if (types[i] == BaseTypes.DATETIME && context.dateFormat != null) {
+					value = DateParser.forFormat(context.dateFormat).parse((String) value);
+				}
+				values.put(names[i], BaseTypes.ConvertToPrimitive(value,
+						types[i] == BaseTypes.BOOLEAN ? BaseTypes.STRING : types[i]));
+			}
+			it.addRow(values);
+		}
+		return it;
+	}
+
+	@ThingworxServiceDefinition(name = "ParseCSVFiles", description = "Parse every CSV file in a repository directory that matches a pattern into one result, several files at a time")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseCSVFiles(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "directory", description = "Directory holding the files", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String directory,
+			@ThingworxServiceParameter(name = "pattern", description = "Glob the file names must match, e.g. sensors-*.csv", baseType = "STRING", aspects = {
+					"defaultValue:*.csv" }) String pattern,
+			@ThingworxServiceParameter(name = "sourceField", description = "Name of a field to add holding the path of the file each row came from, none if empty", baseType = "STRING") String sourceField,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME") String dataShape,
+			@ThingworxServiceParameter(name = "hasHeader", description = "Files have a header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "columnMappings", description = "Column maps", baseType = "STRING") String columnMappings,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter,
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use if there is no datashape", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "columns", description = "Comma seperated list of field names to keep if there is no datashape, other columns are skipped", baseType = "STRING") String columns,
+			@ThingworxServiceParameter(name = "filter", description = "Only keep rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter)
+			throws Exception {
+
+		final FileRepositoryThing repo = getFileRepository(fileRepository);
+		List<String> paths = listFiles(repo, fileRepository, directory, pattern);
+		long totalSize = 0;
+		for (String path : paths) {
+			totalSize += getFileSize(repo, path);
+		}
+
+		// the files are parsed in parallel, but all of them end up in memory
+		ParseStatistics.Call call = _statistics.start("ParseCSVFiles");
+		ParseExecutor.Admission admission = admit(call, totalSize);
+		try {
+			boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+			final InfoTable it = hasDatashape ? InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape)
+					: new InfoTable();
+			final ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS,
+					hasDatashape, hasHeader != null && hasHeader, customHeaders, columns, null, null, call);
+			call.bytesRead(totalSize);
+			final boolean hasSource = sourceField != null && !sourceField.isEmpty();
+			if (hasSource && it.getDataShape().getFieldDefinition(sourceField) != null) {
+				// the source isn't a column of the files
+				it.RemoveField(sourceField);
+			}
+			if (!hasDatashape && !paths.isEmpty()) {
+				inferCSVFiles(context, repo, fileRepository, paths, it, fieldDelimiter, stringDelimiter);
+			}
+			InfoTable result = new InfoTable(it.getDataShape().clone());
+			if (hasSource) {
+				addField(result, sourceField, BaseTypes.STRING, newFieldTypes(it).length);
+			}
+
+			ArrayList<Callable<ArrayList<ValueCollection>>> tasks = new ArrayList<Callable<ArrayList<ValueCollection>>>();
+			for (final String path : paths) {
+				tasks.add(new Callable<ArrayList<ValueCollection>>() {
+					@Override
+					public ArrayList<ValueCollection> call() throws Exception {
+						final ArrayList<ValueCollection> rows = new ArrayList<ValueCollection>();
+						RowSink sink = new RowSink() {
+							@Override
+							public void addRow(ValueCollection values) throws Exception {
+								rows.add(values);
+							}
+						};
+						parseCSVFileOf(context, filter, repo, fileRepository, path, it,
+								hasSource ? withSourceField(sink, sourceField, path) : sink, columnMappings,
+								fieldDelimiter, stringDelimiter);
+						return rows;
+					}
+				});
+			}
+			ArrayList<ArrayList<ValueCollection>> files = runInOrder(tasks);
+			long start = System.nanoTime();
+			for (ArrayList<ValueCollection> rows : files) {
+				for (ValueCollection values : rows) {
+					result.addRow(values);
+				}
+			}
+			call.time(ParseStatistics.Phase.ADD_ROW, start);
+			call.succeeded(result.getRowCount());
+			return result;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "ParseCSVFilesToEntity", description = "Parse every CSV file in a repository directory that matches a pattern straight into a Stream or DataTable, several files at a time")
+	@ThingworxServiceResult(name = "result", description = "Number of rows written", baseType = "NUMBER")
+	public Double ParseCSVFilesToEntity(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "directory", description = "Directory holding the files", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String directory,
+			@ThingworxServiceParameter(name = "pattern", description = "Glob the file names must match, e.g. sensors-*.csv", baseType = "STRING", aspects = {
+					"defaultValue:*.csv" }) String pattern,
+			@ThingworxServiceParameter(name = "sourceField", description = "Field of the data shape to fill with the path of the file each row came from, none if empty", baseType = "STRING") String sourceField,
+			@ThingworxServiceParameter(name = "targetEntity", description = "Stream or DataTable to write the rows to", baseType = "THINGNAME") String targetEntity,
+			@ThingworxServiceParameter(name = "batchSize", description = "Number of rows written per call to the target", baseType = "INTEGER", aspects = {
+					"defaultValue:500" }) Integer batchSize,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape, defaults to the data shape of the target", baseType = "DATASHAPENAME") String dataShape,
+			@ThingworxServiceParameter(name = "hasHeader", description = "Files have a header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "columnMappings", description = "Column maps", baseType = "STRING") String columnMappings,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter,
+			@ThingworxServiceParameter(name = "filter", description = "Only write rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter)
+			throws Exception {
+
+		final FileRepositoryThing repo = getFileRepository(fileRepository);
+		List<String> paths = listFiles(repo, fileRepository, directory, pattern);
+		ParseStatistics.Call call = _statistics.start("ParseCSVFilesToEntity");
+		ParseExecutor.Admission admission = admit(call, 0);
+		try {
+			final Thing target = targetEntity != null && !targetEntity.isEmpty()
+					? ThingUtilities.findThing(targetEntity) : null;
+			if (target == null) {
+				throw new InvalidRequestException("Target Entity [" + targetEntity + "] Does Not Exist",
+						RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+			}
+			if (!EntityRowSink.canWriteTo(target)) {
+				throw new InvalidRequestException("Thing [" + targetEntity + "] Is Not A Stream Or DataTable",
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+			}
+
+			if (dataShape == null || dataShape.isEmpty()) {
+				dataShape = EntityRowSink.getDataShapeName(target);
+			}
+			final InfoTable it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+			final DataShapeDefinition shape = it.getDataShape().clone();
+			final boolean hasSource = sourceField != null && !sourceField.isEmpty();
+			if (hasSource) {
+				if (shape.getFieldDefinition(sourceField) == null) {
+					throw new InvalidRequestException(
+							"Data Shape [" + dataShape + "] Has No Field [" + sourceField + "]",
+							RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+				}
+				// the source isn't a column of the files
+				it.RemoveField(sourceField);
+			}
+			final ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, true,
+					hasHeader != null && hasHeader, null, null, null, null, call);
+			for (String path : paths) {
+				call.bytesRead(getFileSize(repo, path));
+			}
+
+			// each file writes its own batches, so a file holds at most one batch in memory
+			ArrayList<Callable<Long>> tasks = new ArrayList<Callable<Long>>();
+			for (final String path : paths) {
+				tasks.add(new Callable<Long>() {
+					@Override
+					public Long call() throws Exception {
+						EntityRowSink sink = new EntityRowSink(target, shape, batchSize != null ? batchSize : 500);
+						parseCSVFileOf(context, filter, repo, fileRepository, path, it,
+								hasSource ? withSourceField(sink, sourceField, path) : sink, columnMappings,
+								fieldDelimiter, stringDelimiter);
+						sink.flush();
+						return sink.getRowsWritten();
+					}
+				});
+			}
+			long rows = 0;
+			for (Long fileRows : runInOrder(tasks)) {
+				rows += fileRows;
+			}
+			call.succeeded(rows);
+			return (double) rows;
+		} finally {
+			admission.release();
+			call.end();
+		}
+	}
+
+	// repository paths of the files directly in directory with names that match the
+	// glob, in name order
+	private List<String> listFiles(FileRepositoryThing repo, String fileRepository, String directory, String pattern)
+			throws Exception {
+		if (directory == null) {
+			directory = "/";
+		}
+		File root = new File(repo.getRootPath()).getCanonicalFile();
+		File folder = new File(root, directory).getCanonicalFile();
+		if (!folder.isDirectory() || !folder.toPath().startsWith(root.toPath())) {
+			throw new InvalidRequestException(
+					"Directory [" + directory + "] Does Not Exist In [" + fileRepository + "]",
+					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+		}
+		PathMatcher matcher = FileSystems.getDefault()
+				.getPathMatcher("glob:" + (pattern != null && !pattern.isEmpty() ? pattern : "*"));
+		ArrayList<String> names = new ArrayList<String>();
+		File[] files = folder.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isFile() && matcher.matches(Paths.get(file.getName()))) {
+					names.add(file.getName());
+				}
+			}
+		}
+		Collections.sort(names);
+		String prefix = directory.endsWith("/") ? directory : directory + "/";
+		ArrayList<String> paths = new ArrayList<String>();
+		for (String name : names) {
+			paths.add(prefix + name);
+		}
+		return paths;
+	}
+
+	// the fields of files that share a layout: each file is inferred on the parse
+	// pool, unless the schema cache has it, and the types are widened to cover all of
+	// them. Empty files have no say
+	private void inferCSVFiles(final ParseContext context, final FileRepositoryThing repo,
+			final String fileRepository, List<String> paths, InfoTable it, final String fieldDelimiter,
+			final String stringDelimiter) throws Exception {
+		final String settings = csvSchemaSettings(context, fieldDelimiter, stringDelimiter, 0);
+		ArrayList<Callable<InfoTable>> tasks = new ArrayList<Callable<InfoTable>>();
+		for (final String path : paths) {
+			tasks.add(new Callable<InfoTable>() {
+				@Override
+				public InfoTable call() throws Exception {
+					FileKey file = FileKey.of(repo, fileRepository, path);
+					InfoTable fields = new InfoTable();
+					if (!loadInferredShape(context, fields, file, settings)) {
+						inferFromReader(context, openFileReader(context, repo, fileRepository, path, null), fields,
+								fieldDelimiter, stringDelimiter);
+						_schemaCache.put(file, settings, fields.getDataShape());
+					}
+					return fields;
+				}
+			});
+		}
+		ArrayList<InfoTable> files = runInOrder(tasks);
+
+		String layoutPath = null;
+		ArrayList<FieldDefinition> layout = null;
+		BaseTypes[] types = null;
+		for (int f = 0; f < files.size(); f++) {
+			InfoTable fields = files.get(f);
+			if (fields.getFieldCount() == 0) {
+				continue;
+			}
+			ArrayList<FieldDefinition> ordered = fields.getDataShape().getFields().getOrderedFieldsByOrdinal();
+			if (layout == null) {
+				layoutPath = paths.get(f);
+				layout = ordered;
+				it.setDataShape(fields.getDataShape().clone());
+				types = newFieldTypes(it);
+			} else if (!sameFields(layout, ordered)) {
+				throw new InvalidRequestException(
+						"[" + paths.get(f) + "] Does Not Have The Same Columns As [" + layoutPath + "]",
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+			}
+			for (FieldDefinition field : ordered) {
+				types[field.getOrdinal()] = mergeFieldType(types[field.getOrdinal()], field.getBaseType());
+			}
+		}
+		if (types != null) {
+			applyFieldTypes(it, types);
+		}
+	}
+
+	private static boolean sameFields(List<FieldDefinition> a, List<FieldDefinition> b) {
+		if (a.size() != b.size()) {
+			return false;
+		}
+		for (int i = 0; i < a.size(); i++) {
+			if (!a.get(i).getName().equals(b.get(i).getName()) || a.get(i).getOrdinal() != b.get(i).getOrdinal()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// parses one of several files against the shared fields of it. Each file gets
+	// its own filter, as a filter is bound to the columns of one parse
+	private void parseCSVFileOf(ParseContext context, String filter, FileRepositoryThing repo, String fileRepository,
+			String path, InfoTable it, RowSink sink, String columnMappings, String fieldDelimiter,
+			String stringDelimiter) throws Exception {
+		ParseContext fileContext = new ParseContext(context.dateFormat, context.minDateMilliseconds,
+				context.hasDatashape, context.hasHeader, context.customHeaders, context.columns,
+				RowFilter.parse(filter, context.dateFormat), context.errors, context.stats);
+		try {
+			parseFromReader(fileContext, openFileReader(context, repo, fileRepository, path, null), it, sink,
+					columnMappings, fieldDelimiter, stringDelimiter, null, null, context.dateFormat);
+		} catch (IndexOutOfBoundsException e) {
+			throw columnCountMismatch(new IndexOutOfBoundsException("[" + path + "] " + e.getMessage()));
+		}
+	}
+
+	private static RowSink withSourceField(final RowSink sink, final String sourceField, final String path)
+			throws Exception {
+		final IPrimitiveType<?, ?> source = BaseTypes.ConvertToPrimitive(path, BaseTypes.STRING);
+		return new RowSink() {
+			@Override
+			public void addRow(ValueCollection values) throws Exception {
+				values.put(sourceField, source);
+				sink.addRow(values);
+			}
+		};
+	}
+
+	@ThingworxServiceDefinition(name = "ParseCSVIncremental", description = "Parse the rows appended to a CSV file in a repository since the last call")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable ParseCSVIncremental(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME") String dataShape,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "columnMappings", description = "Column maps", baseType = "STRING") String columnMappings,
+			@ThingworxServiceParameter(name = "latitudeField", description = "Latitude field index", baseType = "NUMBER") Double latitudeField,
+			@ThingworxServiceParameter(name = "longitudeField", description = "Longitude field index", baseType = "NUMBER") Double longitudeField,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter,
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use if there is no datashape", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "columns", description = "Comma seperated list of field names to keep if there is no datashape, other columns are skipped", baseType = "STRING") String columns,
+			@ThingworxServiceParameter(name = "restart", description = "Forget the last position and parse the file from the top", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean restart)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		char fieldChar = delimiterChar(fieldDelimiter, "fieldDelimiter");
+		char quoteChar = delimiterChar(stringDelimiter, "stringDelimiter");
+		Charset charset = Charset.defaultCharset();
+		if (!CSVChunker.canSplit(charset, fieldChar, quoteChar)) {
+			throw new InvalidRequestException("Incremental parsing needs single byte delimiters and line endings in the "
+					+ charset.name() + " encoding", RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+
+		String key = cacheParameters(fileRepository, path, dataShape, hasHeader, columnMappings, latitudeField,
+				longitudeField, dateFormat, fieldDelimiter, stringDelimiter, customHeaders, columns);
+		CSVTail tail;
+		synchronized (_tails) {
+			tail = _tails.get(key);
+			if (tail == null) {
+				tail = new CSVTail();
+				_tails.put(key, tail);
+			}
+		}
+
+		boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+		ParseStatistics.Call call = _statistics.start("ParseCSVIncremental");
+		ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, hasDatashape,
+				hasHeader != null && hasHeader, customHeaders, columns, null, null, call);
+
+		FileInputStream stream;
+		try {
+			stream = openFileStream(context, repo, fileRepository, path);
+		} catch (Exception e) {
+			call.end();
+			throw e;
+		}
+		try {
+			FileChannel channel = stream.getChannel();
+			// admitted before the tail is locked, so a call that waits for admission doesn't
+			// hold up the next call on the same file. What was appended since the last commit
+			// is the estimate, the whole file when it will be read from the top
+			long size = channel.size();
+			boolean fromTop = (restart != null && restart) || tail.offset > size;
+			ParseExecutor.Admission admission = admit(call, fromTop ? size : size - tail.offset);
+			try {
+				synchronized (tail) {
+					if ((restart != null && restart) || !tail.isCurrent(channel)) {
+						tail.reset();
+					}
+					long start = tail.offset;
+					if (tail.endsWithCR && start < channel.size()) {
+						// the \n of a \r\n that was split across two calls
+						ByteBuffer next = ByteBuffer.allocate(1);
+						channel.read(next, start);
+						if (next.get(0) == '\n') {
+							start++;
+						}
+					}
+					long end = CSVChunker.completeEnd(channel, start, quoteChar);
+
+					InfoTable it = hasDatashape ? InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape)
+							: new InfoTable();
+					if (end == start) {
+						if (!hasDatashape && tail.shape != null) {
+							it = new InfoTable(tail.shape.clone());
+							applyFieldTypes(it, tail.types);
+						}
+						call.succeeded(0);
+						return it;
+					}
+					call.bytesRead(end - start);
+					CSVChunker.Chunk chunk = new CSVChunker.Chunk(start, end, tail.rowNumber);
+					ArrayList<String> fieldValues = new ArrayList<String>();
+
+					DataShapeDefinition shape = tail.shape;
+					BaseTypes[] types = null;
+					if (!hasDatashape) {
+						long inferring = System.nanoTime();
+						// the fields come from the first row of the file, the types are widened by
+						// every row read so far
+						CSVTokenizer tokenizer = new CSVTokenizer(CSVChunker.reader(channel, chunk, charset), fieldChar,
+								quoteChar);
+						if (shape == null) {
+							tokenizer.readRow(fieldValues);
+							createFields(context, it, fieldValues);
+							shape = it.getDataShape().clone();
+							types = newFieldTypes(it);
+							if (!context.hasHeader) {
+								setFieldType(context, types, fieldValues);
+							}
+						} else {
+							it = new InfoTable(shape.clone());
+							types = tail.types.clone();
+						}
+						boolean[] inferKeep = getColumnMask(getColumnIndices(context, it, null), -1, -1);
+						while (tokenizer.readRow(fieldValues, inferKeep)) {
+							setFieldType(context, types, fieldValues);
+						}
+						applyFieldTypes(it, types);
+						call.time(ParseStatistics.Phase.INFER, inferring);
+					}
+
+					HashMap<String, Integer> columnIndices = getColumnIndices(context, it, columnMappings);
+					int latitudeCol = latitudeField != null ? latitudeField.intValue() : -1;
+					int longitudeCol = longitudeField != null ? longitudeField.intValue() : -1;
+					boolean[] keep = getColumnMask(columnIndices, latitudeCol, longitudeCol);
+					CSVTokenizer tokenizer = new CSVTokenizer(CSVChunker.reader(channel, chunk, charset), fieldChar,
+							quoteChar);
+					int rowNumber = chunk.firstRow;
+					long[] nanos = new long[2];
+					long parsing = System.nanoTime();
+					try {
+						while (tokenizer.readRow(fieldValues, keep)) {
+							long row = System.nanoTime();
+							ValueCollection values = processFieldSet(context, it, fieldValues, columnIndices,
+									latitudeCol, longitudeCol, dateFormat, rowNumber);
+							long converted = System.nanoTime();
+							nanos[0] += converted - row;
+							if (values != null) {
+								it.addRow(values);
+								nanos[1] += System.nanoTime() - converted;
+							}
+							rowNumber++;
+						}
+					} catch (IndexOutOfBoundsException e) {
+						throw columnCountMismatch(e);
+					} finally {
+						addRowPhases(call, parsing, nanos);
+					}
+
+					// only a parse that got through every new row moves the offset
+					tail.shape = shape;
+					tail.types = types;
+					tail.commit(channel, end, rowNumber - chunk.firstRow);
+					call.succeeded(it.getRowCount());
+					return it;
+				}
+			} finally {
+				admission.release();
+			}
+		} finally {
+			try {
+				stream.close();
+			} catch (Exception eClose) {
+			}
+			call.end();
+		}
+	}
+
+	@ThingworxServiceDefinition(name = "InferDataShape", description = "Infer the fields of a CSV, XLSX or JSON file in a repository from its first rows")
+	@ThingworxServiceResult(name = "result", description = "Field definitions", baseType = "INFOTABLE")
+	public InfoTable InferDataShape(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) String path,
+			@ThingworxServiceParameter(name = "fileType", description = "CSV, XLSX or JSON, taken from the file extension if empty", baseType = "STRING") String fileType,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) String stringDelimiter,
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use for a CSV file", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "columns", description = "Comma seperated list of field names to keep for a CSV file, other columns are skipped", baseType = "STRING") String columns,
+			@ThingworxServiceParameter(name = "sheetName", description = "Sheet of an XLSX file", baseType = "STRING") String sheetName,
+			@ThingworxServiceParameter(name = "sampleRows", description = "Number of rows to infer the fields from, 0 for the whole file", baseType = "INTEGER", aspects = {
+					"defaultValue:1000" }) Integer sampleRows,
+			@ThingworxServiceParameter(name = "dataShapeName", description = "Create a data shape with this name from the inferred fields", baseType = "STRING") String dataShapeName)
+			throws Exception {
+
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		if (fileType == null || fileType.isEmpty()) {
+			fileType = path != null && path.lastIndexOf('.') >= 0 ? path.substring(path.lastIndexOf('.') + 1) : "";
+		}
+		fileType = fileType.toUpperCase();
+		int sample = sampleRows != null ? Math.max(sampleRows, 0) : 1000;
+
+		ParseStatistics.Call call = _statistics.start("InferDataShape");
+		try {
+			ParseContext context;
+			String options;
+			if (fileType.equals("CSV")) {
+				context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, false,
+						hasHeader != null && hasHeader, customHeaders, columns, null, null, call);
+				options = "" + delimiterChar(fieldDelimiter, "fieldDelimiter")
+						+ delimiterChar(stringDelimiter, "stringDelimiter");
+			} else if (fileType.equals("XLSX")) {
+				context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, false,
+						hasHeader != null && hasHeader, null, null, null, null, call);
+				options = sheetName;
+			} else if (fileType.equals("JSON")) {
+				context = new ParseContext(dateFormat != null && !dateFormat.isEmpty() ? dateFormat
+						: ParseContext.DEFAULT_DATE_FORMAT, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, false, false,
+						null, null, null, null, call);
+				options = "";
+			} else {
+				throw new InvalidRequestException(
+						"Unsupported File Type [" + fileType + "] - expected CSV, XLSX or JSON",
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+			}
+
+			// a full scan answers a sampled request just as well
+			FileKey file = FileKey.of(repo, fileRepository, path);
+			String settings = SchemaCache.settings(fileType, context, options, sample);
+			DataShapeDefinition shape = _schemaCache.get(file, settings);
+			if (shape == null && sample > 0) {
+				shape = _schemaCache.get(file, SchemaCache.settings(fileType, context, options, 0));
+			}
+			if (shape != null) {
+				call.cacheHit();
+			} else {
+				InfoTable it = new InfoTable();
+				// CSV is streamed, the other formats are loaded into memory
+				long loadedSize = fileType.equals("CSV") ? 0 : getFileSize(repo, path);
+				ParseExecutor.Admission admission = admit(call, loadedSize);
+				try {
+					if (fileType.equals("CSV")) {
+						inferFromReader(context, openFileReader(repo, fileRepository, path), it, fieldDelimiter,
+								stringDelimiter, sample);
+					} else if (fileType.equals("XLSX")) {
+						parseXLSX(context, it, repo, fileRepository, path, sheetName, 100, 4096, sample, null);
+					} else {
+						// JSON files are UTF-8
+						Reader reader = new InputStreamReader(openFileStream(repo, fileRepository, path),
+								Charset.forName("UTF-8"));
+						try {
+							it = inferJSON(context, new JSONTokenizer(reader), sample);
+						} finally {
+							try {
+								reader.close();
+							} catch (Exception eClose) {
+							}
+						}
+					}
+				} finally {
+					admission.release();
+				}
+				// only a full read is counted, a sample stops wherever it has enough rows
+				if (sample == 0 || fileType.equals("XLSX")) {
+					call.bytesRead(getFileSize(repo, path));
+				}
+				shape = it.getDataShape();
+				_schemaCache.put(file, settings, shape);
+			}
+
+			InfoTable fields = fieldDefinitions(shape);
+			if (dataShapeName != null && !dataShapeName.isEmpty()) {
+				createDataShape(dataShapeName, "Inferred from " + path + " in " + fileRepository, fields);
+			}
+			call.succeeded(fields.getRowCount());
+			return fields;
+		} finally {
+			call.end();
+		}
+	}
+
+	// the fields of the first sampleRows objects of a JSON array, or of a single
+	// object. A field that has different types in different objects becomes a string.
+	// The elements of an array after the sample are never read
+	protected InfoTable inferJSON(ParseContext context, JSONTokenizer tokens, int sampleRows) throws Exception {
+		if (tokens.peek() == JSONTokenizer.BEGIN_OBJECT) {
+			return parseJSON(context, (JSONObject) tokens.readValue(), null);
+		}
+		if (tokens.peek() != JSONTokenizer.BEGIN_ARRAY) {
+			throw new InvalidRequestException("JSON File Must Hold An Object Or An Array",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		InfoTable it = new InfoTable();
+		tokens.beginArray();
+		int count = 0;
+		while ((sampleRows <= 0 || count < sampleRows) && tokens.hasNext()) {
+			Object element = tokens.readValue();
+			count++;
+			if (!(element instanceof JSONObject)) {
+				continue;
+			}
+			for (FieldDefinition found : parseJSON(context, (JSONObject) element, null).getDataShape().getFields()
+					.getOrderedFieldsByOrdinal()) {
+				FieldDefinition field = it.getField(found.getName());
+				if (field == null) {
+					addField(it, found.getName(), found.getBaseType(), it.getFieldCount());
+				} else {
+					field.setBaseType(mergeFieldType(field.getBaseType(), found.getBaseType()));
+				}
+			}
+		}
+		return it;
+	}
+
+	// one row per field, laid out the way EntityServices.CreateDataShape takes them
+	private InfoTable fieldDefinitions(DataShapeDefinition shape) throws Exception {
+		InfoTable fields = new InfoTable();
+		addField(fields, "name", BaseTypes.STRING, 0);
+		addField(fields, "description", BaseTypes.STRING, 1);
+		addField(fields, "baseType", BaseTypes.BASETYPENAME, 2);
+		addField(fields, "ordinal", BaseTypes.INTEGER, 3);
+		for (FieldDefinition field : shape.getFields().getOrderedFieldsByOrdinal()) {
+			ValueCollection values = new ValueCollection();
+			values.put("name", BaseTypes.ConvertToPrimitive(field.getName(), BaseTypes.STRING));
+			values.put("description", BaseTypes.ConvertToPrimitive("", BaseTypes.STRING));
+			values.put("baseType", BaseTypes.ConvertToPrimitive(field.getBaseType().name(), BaseTypes.BASETYPENAME));
+			values.put("ordinal", BaseTypes.ConvertToPrimitive(field.getOrdinal(), BaseTypes.INTEGER));
+			fields.addRow(values);
+		}
+		return fields;
+	}
+
+	private void createDataShape(String name, String description, InfoTable fields) throws Exception {
+		if (EntityUtilities.findEntity(name, ThingworxRelationshipTypes.DataShape) != null) {
+			throw new InvalidRequestException("Data Shape [" + name + "] Already Exists",
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		EntityServices entityServices = (EntityServices) EntityUtilities.findEntity("EntityServices",
+				ThingworxRelationshipTypes.Resource);
+		entityServices.CreateDataShape(name, description, null, fields);
+	}
+
+	@ThingworxServiceDefinition(name = "GetResultCacheStatistics", description = "Hits, misses and size of the ParseCSV and ParseXLSX result cache")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable GetResultCacheStatistics() throws Exception {
+		ResultCache cache = getResultCache();
+
+		InfoTable it = new InfoTable();
+		addField(it, "enabled", BaseTypes.BOOLEAN, 0);
+		addField(it, "hits", BaseTypes.LONG, 1);
+		addField(it, "misses", BaseTypes.LONG, 2);
+		addField(it, "evictions", BaseTypes.LONG, 3);
+		addField(it, "entries", BaseTypes.INTEGER, 4);
+		addField(it, "bytes", BaseTypes.LONG, 5);
+		addField(it, "maxBytes", BaseTypes.LONG, 6);
+
+		ValueCollection values = new ValueCollection();
+		values.put("enabled", BaseTypes.ConvertToPrimitive(cache.isEnabled(), BaseTypes.BOOLEAN));
+		values.put("hits", BaseTypes.ConvertToPrimitive(cache.getHits(), BaseTypes.LONG));
+		values.put("misses", BaseTypes.ConvertToPrimitive(cache.getMisses(), BaseTypes.LONG));
+		values.put("evictions", BaseTypes.ConvertToPrimitive(cache.getEvictions(), BaseTypes.LONG));
+		values.put("entries", BaseTypes.ConvertToPrimitive(cache.getEntries(), BaseTypes.INTEGER));
+		values.put("bytes", BaseTypes.ConvertToPrimitive(cache.getBytes(), BaseTypes.LONG));
+		values.put("maxBytes", BaseTypes.ConvertToPrimitive(cache.getMaxBytes(), BaseTypes.LONG));
+		it.addRow(values);
+		return it;
+	}
+
+	@ThingworxServiceDefinition(name = "GetParseStatistics", description = "Calls, errors, rows, cache hits, latency percentiles and time per phase of every parse service since the last reset")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable GetParseStatistics() throws Exception {
+		return _statistics.toInfoTable();
+	}
+
+	@ThingworxServiceDefinition(name = "ResetParseStatistics", description = "Start the parse statistics over from zero")
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING")
+	public void ResetParseStatistics() throws Exception {
+		_statistics.reset();
+	}
+
+	@ThingworxServiceDefinition(name = "ClearResultCache", description = "Drop every cached ParseCSV and ParseXLSX result")
+	@ThingworxServiceResult(name = "result", description = "", baseType = "NOTHING")
+	public void ClearResultCache() throws Exception {
+		getResultCache().clear();
+	}
+
+	@Override
+	public void initializeEntity() throws Exception {
+		super.initializeEntity();
+		ParseExecutor previous = _executor;
+		_resultCache = createResultCache();
+		_executor = createExecutor();
+		if (previous != null) {
+			previous.shutdown();
+		}
+	}
+
+	@Override
+	public void cleanupEntity() throws Exception {
+		ParseExecutor executor = _executor;
+		_executor = null;
+		if (executor != null) {
+			executor.shutdown();
+		}
+		ResultCache cache = _resultCache;
+		if (cache != null) {
+			cache.clear();
+		}
+		for (ParseJob job : _jobs.values()) {
+			job.cancel();
+			job.discard();
+		}
+		_jobs.clear();
+		super.cleanupEntity();
+	}
+
+	private ParseExecutor getExecutor() {
+		ParseExecutor executor = _executor;
+		if (executor == null) {
+			synchronized (this) {
+				if (_executor == null) {
+					_resultCache = createResultCache();
+					_executor = createExecutor();
+				}
+				executor = _executor;
+			}
+		}
+		return executor;
+	}
+
+	private ParseExecutor createExecutor() {
+		ParseExecutor executor = new ParseExecutor(getIntSetting("workerThreads", 0),
+				getIntSetting("maxConcurrentParses", 4), getIntSetting("maxQueuedParses", 16),
+				getIntSetting("queueTimeout", 30) * 1000L, getIntSetting("heapBudgetPercent", 50),
+				getNumberSetting("heapPerFileByte", 8));
+		// results nobody fetches are released even if no other job is ever started
+		executor.scheduleEvery(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expireJobs();
+				} catch (Exception e) {
+					_logger.error("Failed to expire parse jobs - " + e.getMessage());
+				}
+			}
+		}, JOB_SWEEP_INTERVAL);
+		return executor;
+	}
+
+	private ResultCache getResultCache() {
+		getExecutor();
+		return _resultCache;
+	}
+
+	private ResultCache createResultCache() {
+		return new ResultCache(getIntSetting("resultCacheSize", 0) * 1024L * 1024,
+				getNumberSetting("heapPerFileByte", 8));
+	}
+
+	// the parameters that decide what a parse returns, as part of a result cache key
+	private static String cacheParameters(Object... parameters) {
+		StringBuilder key = new StringBuilder();
+		for (Object parameter : parameters) {
+			key.append(parameter).append('\u0001');
+		}
+		return key.toString();
+	}
+
+	// a call that isn't admitted ends as an error
+	private ParseExecutor.Admission admit(ParseStatistics.Call call, long fileSize) throws Exception {
+		try {
+			return getExecutor().admit(fileSize);
+		} catch (Exception e) {
+			call.end();
+			throw e;
+		}
+	}
+
+	private int getIntSetting(String name, int defaultValue) {
+		return (int) getNumberSetting(name, defaultValue);
+	}
+
+	private double getNumberSetting(String name, double defaultValue) {
+		Object value = null;
+		try {
+			value = getConfigurationSetting("ParseSettings", name);
+		} catch (Exception e) {
+		}
+		return value instanceof Number ? ((Number) value).doubleValue() : defaultValue;
+	}
+
+	// null for the system temp directory
+	private File getSpillDirectory() {
+		Object directory = null;
+		try {
+			directory = getConfigurationSetting("ParseSettings", "spillDirectory");
+		} catch (Exception e) {
+		}
+		return directory != null && !directory.toString().isEmpty() ? new File(directory.toString()) : null;
+	}
+
+	// size of the file for the memory estimate, 0 if the repository doesn't know it
+	private long getFileSize(FileRepositoryThing repo, String path) {
+		Long size = null;
+		try {
+			size = repo.getFileSize(path);
+		} catch (Exception e) {
+		}
+		return size != null ? size : 0;
+	}
 
+	private FileRepositoryThing getFileRepository(String fileRepository) throws Exception {
 		if (!(fileRepository != null && !fileRepository.isEmpty())) {
 			throw new InvalidRequestException("File Repository Must Be Specified",
 					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
@@ -197,65 +2147,328 @@ public class Parsley extends Resource {
 			throw new InvalidRequestException("Thing [" + fileRepository + "] Is Not A File Repository",
 					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
 		}
-		FileRepositoryThing repo = (FileRepositoryThing) thing;
-		InfoTable it = new InfoTable();
+		return (FileRepositoryThing) thing;
+	}
 
-		if (!(dataShape != null && !dataShape.isEmpty())) {
-			_hasDatashape = false;
-		} else {
-			_hasDatashape = true;
-			it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+	private IndexOutOfBoundsException columnCountMismatch(IndexOutOfBoundsException e) {
+		return new IndexOutOfBoundsException(
+				"Array index was out of bounds. This generally happens when either the number of columns do not match up to those provided by the data shape."
+						+ " It can also occur if there was an error parsing a datetime based on the input format. - "
+						+ e.getMessage());
+	}
+
+	// row index for the current version of the file, built on first use
+	private CSVRowIndex getRowIndex(FileRepositoryThing repo, String fileRepository, String path, char quoteChar)
+			throws Exception {
+		FileKey key = FileKey.of(repo, fileRepository, path);
+		CSVRowIndex index = _rowIndexCache.get(key);
+		if (index == null || index.quoteChar != quoteChar) {
+			FileInputStream stream = openFileStream(repo, fileRepository, path);
+			try {
+				index = CSVRowIndex.build(stream.getChannel(), quoteChar);
+			} finally {
+				stream.close();
+			}
+			_rowIndexCache.put(key, index);
+		}
+		return index;
+	}
+
+	// fields inferred by an earlier scan of this version of the file, returns false
+	// if there were none and the file still has to be inferred
+	private boolean loadInferredShape(ParseContext context, InfoTable it, FileKey file, String settings) {
+		DataShapeDefinition shape = _schemaCache.get(file, settings);
+		if (shape == null) {
+			return false;
 		}
-		;
-		InputStreamReader reader;
+		it.setDataShape(shape);
+		context.stats.cacheHit();
+		return true;
+	}
+
+	private static String csvSchemaSettings(ParseContext context, String fieldDelimiter, String stringDelimiter,
+			int sampleRows) throws Exception {
+		String options = "" + delimiterChar(fieldDelimiter, "fieldDelimiter")
+				+ delimiterChar(stringDelimiter, "stringDelimiter");
+		return SchemaCache.settings("CSV", context, options, sampleRows);
+	}
+
+	// no data shape was given and the fields haven't been loaded from the schema cache
+	protected boolean needsInference(ParseContext context, InfoTable it) {
+		return !context.hasDatashape && it.getFieldCount() == 0;
+	}
+
+	private FileInputStream openFileStream(FileRepositoryThing repo, String fileRepository, String path)
+			throws Exception {
 		try {
-			reader = new InputStreamReader(repo.openFileForRead(path));
+			return repo.openFileForRead(path);
 		} catch (Exception eOpen) {
 			throw new InvalidRequestException(
 					"Unable To Open [" + path + "] in [" + fileRepository + "] : " + eOpen.getMessage(),
 					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
 		}
+	}
+
+	// the time it takes counts as the open phase of the context's call
+	private FileInputStream openFileStream(ParseContext context, FileRepositoryThing repo, String fileRepository,
+			String path) throws Exception {
+		long start = System.nanoTime();
 		try {
-			parseFromReader(reader, it, columnMappings, hasHeader, fieldDelimiter, stringDelimiter, latitudeField,
-					longitudeField, dateFormat);
-		} catch (IndexOutOfBoundsException e) {
+			return openFileStream(repo, fileRepository, path);
+		} finally {
+			context.stats.time(ParseStatistics.Phase.OPEN, start);
+		}
+	}
+
+	private InputStreamReader openFileReader(FileRepositoryThing repo, String fileRepository, String path)
+			throws Exception {
+		return new InputStreamReader(openFileStream(repo, fileRepository, path));
+	}
+
+	private InputStreamReader openFileReader(ParseContext context, FileRepositoryThing repo, String fileRepository,
+			String path, ParseJob job) throws Exception {
+		FileInputStream stream = openFileStream(context, repo, fileRepository, path);
+		return new InputStreamReader(job != null ? job.track(stream) : stream);
+	}
+
+	// one entry per field ordinal, VARIANT until a value has been seen. Skipped
+	// columns leave gaps in the ordinals, their entries are never looked at
+	protected BaseTypes[] newFieldTypes(InfoTable it) {
+		int size = 0;
+		for (FieldDefinition fieldDefinition : it.getDataShape().getFields().values()) {
+			size = Math.max(size, fieldDefinition.getOrdinal() + 1);
+		}
+		BaseTypes[] types = new BaseTypes[size];
+		Arrays.fill(types, BaseTypes.VARIANT);
+		return types;
+	}
+
+	private void setFieldType(ParseContext context, BaseTypes[] types, ArrayList<String> fieldValues)
+			throws Exception {
+		// read row values and widen the field types to cover them
+		for (int i = 0; i < types.length; i++) {
+			String value = fieldValues.get(i);
+			// empty values fit any type, and once a field is a string nothing can change it
+			if (value == null || value.isEmpty() || types[i] == BaseTypes.STRING) {
+				continue;
+			}
+			BaseTypes merged = mergeFieldType(types[i], getTypeFromString(context, value));
+			if (merged != types[i] && types[i] != BaseTypes.VARIANT) {
+				context.stats.fallback();
+			}
+			types[i] = merged;
+		}
+	}
+
+	protected BaseTypes mergeFieldType(BaseTypes current, BaseTypes found) {
+		// a variant means the type hasnt been set yet
+		if (current == BaseTypes.VARIANT || current == found) {
+			return found;
+		}
+		if (found == BaseTypes.VARIANT) {
+			return current;
+		}
+		if ((current == BaseTypes.INTEGER && found == BaseTypes.NUMBER)
+				|| (current == BaseTypes.NUMBER && found == BaseTypes.INTEGER)) {
+			return BaseTypes.NUMBER;
+		}
+		return BaseTypes.STRING;
+	}
+
+	protected void applyFieldTypes(InfoTable it, BaseTypes[] types) {
+		for (FieldDefinition fieldDefinition : it.getDataShape().getFields().values()) {
+			BaseTypes type = types[fieldDefinition.getOrdinal()];
+			// a field with nothing but empty values is left as a string
+			fieldDefinition.setBaseType(type == BaseTypes.VARIANT ? BaseTypes.STRING : type);
+		}
+	}
+
+	protected interface CSVRowHandler {
+		void handleRow(ArrayList<String> fieldValues, int rowNumber) throws Exception;
+	}
+
+	// first pass when there is no data shape - creates the fields from the first
+	// row and settles the type of every field before any value is converted
+	protected void inferFromReader(ParseContext context, Reader reader, InfoTable it, String fieldDelimiter,
+			String stringDelimiter) throws Exception {
+		inferFromReader(context, reader, it, fieldDelimiter, stringDelimiter, 0);
+	}
+
+	// sampleRows limits the inference to the first rows of the file, 0 reads them all
+	protected void inferFromReader(ParseContext context, Reader reader, InfoTable it, String fieldDelimiter,
+			String stringDelimiter, int sampleRows) throws Exception {
+		long start = System.nanoTime();
+		CSVTokenizer tokenizer = new CSVTokenizer(reader, delimiterChar(fieldDelimiter, "fieldDelimiter"),
+				delimiterChar(stringDelimiter, "stringDelimiter"));
+		try {
+			ArrayList<String> fieldValues = new ArrayList<String>();
+			if (!tokenizer.readRow(fieldValues)) {
+				return;
+			}
+			createFields(context, it, fieldValues);
+			BaseTypes[] types = newFieldTypes(it);
+			int rows = 0;
+			if (!context.hasHeader) {
+				setFieldType(context, types, fieldValues);
+				rows++;
+			}
+			boolean[] keep = getColumnMask(getColumnIndices(context, it, null), -1, -1);
+			while ((sampleRows <= 0 || rows < sampleRows) && tokenizer.readRow(fieldValues, keep)) {
+				setFieldType(context, types, fieldValues);
+				rows++;
+			}
+			applyFieldTypes(it, types);
+		} finally {
 			try {
 				reader.close();
 			} catch (Exception eClose) {
-
 			}
-			;
-			throw new IndexOutOfBoundsException(
-					"Array index was out of bounds. This generally happens when either the number of columns do not match up to those provided by the data shape."
-							+ " It can also occur if there was an error parsing a datetime based on the input format. - "
-							+ e.getMessage());
+			context.stats.time(ParseStatistics.Phase.INFER, start);
 		}
-		return it;
 	}
 
-	private void setFieldType(InfoTable it, ArrayList<String> fieldValues, HashMap<String, Integer> fieldIndices)
+	protected void createFields(ParseContext context, InfoTable it, ArrayList<String> fieldValues)
 			throws Exception {
-		// read row values and set infotable appropriately
+		HashSet<String> projection = null;
+		if (context.columns != null && !context.columns.isEmpty()) {
+			projection = new HashSet<String>();
+			for (String column : context.columns.split(",")) {
+				projection.add(column.trim());
+			}
+		}
+		if (context.customHeaders == null || context.customHeaders.isEmpty()) {
+			if (!context.hasHeader) {
+				try {
+					// need to make our own headers if there are none and no custom headers were
+					// passed in
+					for (int i = 0; i < fieldValues.size(); i++) {
+						if (projection != null && !projection.contains("Value" + (i + 1))) {
+							continue;
+						}
+						FieldDefinition field = new FieldDefinition();
+						field.setBaseType(BaseTypes.VARIANT);
+						field.setName("Value" + (i + 1));
+						field.setOrdinal(i);
+						field.setDescription("");
+						it.addField(field);
+					}
+				} catch (Exception e) {
+					throw new InvalidRequestException("Error creating value headers for data shape - " + e.getMessage(),
+							RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+				}
+			} else {
+				// use the headers if theyre there and no custom headers were passed in
+				// we need to replace some characters so we can create a datashape from them
+				try {
+					for (int i = 0; i < fieldValues.size(); i++) {
+						String name = fieldValues.get(i);
 
-		for (FieldDefinition fieldDefinition : it.getDataShape().getFields().values()) {
-			int colIndex = ((Integer) fieldIndices.get(fieldDefinition.getName())).intValue();
-			if (colIndex >= 0) {
-				// if we have a variant that means it hasnt been set yet
-				if (it.getField(fieldDefinition.getName()).getBaseType() == BaseTypes.VARIANT) {
-					it.getField(fieldDefinition.getName()).setBaseType(getTypeFromString(fieldValues.get(colIndex)));
-				} else if (it.getField(fieldDefinition.getName())
-						.getBaseType() != getTypeFromString(fieldValues.get(colIndex))) {
-					it.getField(fieldDefinition.getName()).setBaseType(BaseTypes.STRING);
+						// get rid of any weird null characters, strings, parens, which arent allowed in
+						// property names
+						name = name.replaceAll("[\uFEFF-\uFFFF]", "");
+						name = name.replaceAll("\\s+", "");
+						name = name.replaceAll("[(]", "_");
+						name = name.replaceAll("[)]", "");
+
+						// cant start with a number
+						if (Character.isDigit(name.charAt(0))) {
+							name = "_" + name;
+						}
+						if (projection != null && !projection.contains(name)) {
+							continue;
+						}
+
+						FieldDefinition field = new FieldDefinition();
+						field.setBaseType(BaseTypes.VARIANT);
+						field.setName(name);
+						field.setOrdinal(i);
+						field.setDescription("");
+						it.addField(field);
+					}
+				} catch (Exception e) {
+					throw new InvalidRequestException("Error parsing headers into DataShape - " + e.getMessage(),
+							RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+
+				}
+			}
+		} else {
+			// use custom headers
+			try {
+				String[] headers = context.customHeaders.split(",");
+				int i = 0;
+				for (String header : headers) {
+					if (projection != null && !projection.contains(header)) {
+						i++;
+						continue;
+					}
+					FieldDefinition field = new FieldDefinition();
+					field.setBaseType(BaseTypes.VARIANT);
+					field.setName(header);
+					field.setOrdinal(i);
+					field.setDescription("");
+					it.addField(field);
+					i++;
 				}
+			} catch (Exception e) {
+				throw new InvalidRequestException("Error parsing custom headers into DataShape - " + e.getMessage(),
+						RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 			}
 		}
-
 	}
 
-	protected void parseFromReader(Reader reader, InfoTable it, String columnMappings, Boolean hasHeader,
+	protected void parseFromReader(ParseContext context, Reader reader, final InfoTable it, String columnMappings,
 			String fieldDelimiter, String stringDelimiter, Double latitudeField, Double longitudeField,
-			String dateFormat) throws Exception {
+			final String dateFormat) throws Exception {
+		parseFromReader(context, reader, it, new RowSink() {
+			@Override
+			public void addRow(ValueCollection values) throws Exception {
+				it.addRow(values);
+			}
+		}, columnMappings, fieldDelimiter, stringDelimiter, latitudeField, longitudeField, dateFormat);
+	}
+
+	// converts every row against the fields of it and hands them to the sink
+	protected void parseFromReader(final ParseContext context, Reader reader, final InfoTable it, final RowSink sink,
+			String columnMappings, String fieldDelimiter, String stringDelimiter, Double latitudeField,
+			Double longitudeField, final String dateFormat) throws Exception {
+
+		final HashMap<String, Integer> columnIndices = getColumnIndices(context, it, columnMappings);
+		final int latitudeCol = latitudeField != null ? latitudeField.intValue() : -1;
+		final int longitudeCol = longitudeField != null ? longitudeField.intValue() : -1;
+		boolean[] keep = getColumnMask(columnIndices, latitudeCol, longitudeCol);
+
+		// the rows are timed locally and added to the call once
+		final long[] nanos = new long[2];
+		long start = System.nanoTime();
+		try {
+			readCSV(reader, fieldDelimiter, stringDelimiter, keep, new CSVRowHandler() {
+				@Override
+				public void handleRow(ArrayList<String> fieldValues, int rowNumber) throws Exception {
+					long row = System.nanoTime();
+					ValueCollection values = processFieldSet(context, it, fieldValues, columnIndices, latitudeCol,
+							longitudeCol, dateFormat, rowNumber);
+					long converted = System.nanoTime();
+					nanos[0] += converted - row;
+					if (values != null) {
+						sink.addRow(values);
+						nanos[1] += System.nanoTime() - converted;
+					}
+				}
+			});
+		} finally {
+			addRowPhases(context.stats, start, nanos);
+		}
+	}
+
+	// a row loop that started at start spent nanos[0] converting and nanos[1]
+	// adding rows, the rest of its time went to reading and splitting them
+	private static void addRowPhases(ParseStatistics.Call call, long start, long[] nanos) {
+		call.add(ParseStatistics.Phase.CONVERT, nanos[0]);
+		call.add(ParseStatistics.Phase.ADD_ROW, nanos[1]);
+		call.add(ParseStatistics.Phase.TOKENIZE, System.nanoTime() - start - nanos[0] - nanos[1]);
+	}
 
+	protected HashMap<String, Integer> getColumnIndices(ParseContext context, InfoTable it, String columnMappings) {
 		// this really only matters if they have a data shape and a column mapping
 		String[] mappedColumns = new String[0];
 		if (columnMappings != null && !columnMappings.isEmpty()) {
@@ -274,200 +2487,240 @@ public class Parsley extends Resource {
 		int col = 0;
 		for (FieldDefinition fieldDefinition : it.getDataShape().getFields().values()) {
 			int colIndex = -1;
-			for (col = 0; col < mappedColumns.length; col++) {
-				String columnName = mappedColumns[col];
-				if (columnName.equals(fieldDefinition.getName())) {
-					colIndex = col;
-					break;
+			if (!context.hasDatashape) {
+				// inferred fields were created in column order
+				colIndex = fieldDefinition.getOrdinal();
+			} else {
+				for (col = 0; col < mappedColumns.length; col++) {
+					String columnName = mappedColumns[col];
+					if (columnName.equals(fieldDefinition.getName())) {
+						colIndex = col;
+						break;
+					}
 				}
 			}
 			columnIndices.put(fieldDefinition.getName(), Integer.valueOf(colIndex));
 		}
-		int latitudeColIndex = -1;
-		if (latitudeField != null) {
-			latitudeColIndex = latitudeField.intValue();
-		}
-		int longitudeColIndex = -1;
-		if (longitudeField != null) {
-			longitudeColIndex = longitudeField.intValue();
-		}
-		int fieldChar = fieldDelimiter.charAt(0);
-		int quoteChar = stringDelimiter.charAt(0);
-
-		BufferedReader br = new BufferedReader(reader);
-		int charRead = br.read();
-
-		StringBuilder currentFieldValue = new StringBuilder();
-
-		int rowNumber = 0;
-		ArrayList<String> fieldValues = new ArrayList<String>();
-		// loop through each character and append to the current field value until you
-		// find the next delimiter
-		while (charRead != -1) {
-			if (charRead == quoteChar) {
-				boolean done = false;
-				while (!done) {
-					charRead = br.read();
-					if (charRead == -1) {
-						throw new Exception("Unexpected end of file while parsing CSV input");
-					}
-					if (charRead == quoteChar) {
-						br.mark(1);
-						charRead = br.read();
-						if (charRead == quoteChar) {
-							currentFieldValue.append((char) quoteChar);
-						} else {
-							if (charRead != -1) {
-								br.reset();
-							}
-							done = true;
-						}
-					} else {
-						currentFieldValue.append((char) charRead);
-					}
-				}
-			} else if (charRead == fieldChar) {
-				fieldValues.add(currentFieldValue.toString());
-				currentFieldValue.setLength(0);
-			} else if (charRead == 10) {
-				br.mark(1);
-				charRead = br.read();
-				if ((charRead != -1) && (charRead != 13)) {
-					br.reset();
-				}
-				fieldValues.add(currentFieldValue.toString());
-				currentFieldValue.setLength(0);
-
-				// have a row here
-				processFieldSet(it, fieldValues, columnIndices, latitudeColIndex, longitudeColIndex, dateFormat,
-						rowNumber);
-				rowNumber++;
-
-				fieldValues.clear();
-			} else if (charRead == 13) {
-				br.mark(1);
-				charRead = br.read();
-				if ((charRead != -1) && (charRead != 10)) {
-					br.reset();
-				}
-				fieldValues.add(currentFieldValue.toString());
-				currentFieldValue.setLength(0);
-				processFieldSet(it, fieldValues, columnIndices, latitudeColIndex, longitudeColIndex, dateFormat,
-						rowNumber);
-				rowNumber++;
+		return columnIndices;
+	}
 
-				fieldValues.clear();
-			} else {
-				currentFieldValue.append((char) charRead);
-			}
-			charRead = br.read();
+	// the columns any field is read from; the tokenizer skips the rest of a row
+	// without creating strings for it
+	protected boolean[] getColumnMask(HashMap<String, Integer> columnIndices, int latitudeCol, int longitudeCol) {
+		int size = Math.max(latitudeCol, longitudeCol) + 1;
+		for (Integer colIndex : columnIndices.values()) {
+			size = Math.max(size, colIndex.intValue() + 1);
 		}
-
-		// make sure to add the remaining field value if there was no newline character
-		// at the end of the file
-		if (currentFieldValue.length() > 0) {
-			fieldValues.add(currentFieldValue.toString());
+		boolean[] keep = new boolean[size];
+		for (Integer colIndex : columnIndices.values()) {
+			if (colIndex.intValue() >= 0) {
+				keep[colIndex.intValue()] = true;
+			}
 		}
-		;
-
-		if (fieldValues.size() > 0) {
-			processFieldSet(it, fieldValues, columnIndices, latitudeColIndex, longitudeColIndex, dateFormat, rowNumber);
-			rowNumber++;
+		if (latitudeCol >= 0) {
+			keep[latitudeCol] = true;
 		}
-		try {
-			reader.close();
-		} catch (Exception eClose) {
+		if (longitudeCol >= 0) {
+			keep[longitudeCol] = true;
 		}
+		return keep;
 	}
 
-	protected void processFieldSet(InfoTable it, ArrayList<String> fieldValues, HashMap<String, Integer> fieldIndices,
-			int latitudeField, int longitudeField, String dateFormat, int rowNumber) throws Exception {
-		if (rowNumber == 0 && !_hasDatashape) {
-			if (_customHeaders == null || _customHeaders.isEmpty()) {
-				if (!_hasHeader) {
-					try {
-						// need to make our own headers if there are none and no custom headers were
-						// passed in
-						for (int i = 0; i < fieldValues.size(); i++) {
-							FieldDefinition field = new FieldDefinition();
-							field.setBaseType(BaseTypes.VARIANT);
-							field.setName("Value" + (i + 1));
-							field.setOrdinal(i);
-							field.setDescription("");
-							it.addField(field);
+	// memory maps the file, splits it into chunks on record boundaries and runs the
+	// type inference and conversion of each chunk on the parse pool. The chunks are
+	// added to the infotable in file order
+	protected void parseFromFileParallel(final ParseContext context, FileInputStream stream, final InfoTable it,
+			String columnMappings, String fieldDelimiter, String stringDelimiter, Double latitudeField,
+			Double longitudeField, final String dateFormat) throws Exception {
+		final char fieldChar = delimiterChar(fieldDelimiter, "fieldDelimiter");
+		final char quoteChar = delimiterChar(stringDelimiter, "stringDelimiter");
+		final Charset charset = Charset.defaultCharset();
+		final FileChannel channel = stream.getChannel();
 
-							// we dont have a field map because there are no fields to map
-							// but we still need this index to call setFieldType later
-							fieldIndices.put("Value" + (i + 1), i);
-						}
-						// if we're on row 0 and we dont have headers, lets set out field types if we
-						// dont have a data shape
-						setFieldType(it, fieldValues, fieldIndices);
-					} catch (Exception e) {
-						throw new InvalidRequestException(
-								"Error creating value headers for data shape - " + e.getMessage(),
-								RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
-					}
-				} else {
-					// use the headers if theyre there and no custom headers were passed in
-					// we need to replace some characters so we can create a datashape from them
-					try {
-						for (int i = 0; i < fieldValues.size(); i++) {
-							String name = fieldValues.get(i);
+		try {
+			int threads = getExecutor().getParallelism();
+			long chunkSize = Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, channel.size() / (threads * 4)));
+			ArrayList<CSVChunker.Chunk> chunks = CSVChunker.split(channel, quoteChar, chunkSize);
+			if (chunks.isEmpty()) {
+				return;
+			}
 
-							// get rid of any weird null characters, strings, parens, which arent allowed in
-							// property names
-							name = name.replaceAll("[\uFEFF-\uFFFF]", "");
-							name = name.replaceAll("\\s+", "");
-							name = name.replaceAll("[(]", "_");
-							name = name.replaceAll("[)]", "");
+			if (needsInference(context, it)) {
+				long inferring = System.nanoTime();
+				ArrayList<String> fieldValues = new ArrayList<String>();
+				if (CSVChunker.tokenize(channel, chunks.get(0), charset, fieldChar, quoteChar).readRow(fieldValues)) {
+					createFields(context, it, fieldValues);
+				}
 
-							// cant start with a number
-							if (Character.isDigit(name.charAt(0))) {
-								name = "_" + name;
+				final boolean[] inferKeep = getColumnMask(getColumnIndices(context, it, null), -1, -1);
+				ArrayList<Callable<BaseTypes[]>> inferTasks = new ArrayList<Callable<BaseTypes[]>>();
+				for (final CSVChunker.Chunk chunk : chunks) {
+					inferTasks.add(new Callable<BaseTypes[]>() {
+						@Override
+						public BaseTypes[] call() throws Exception {
+							BaseTypes[] types = newFieldTypes(it);
+							CSVTokenizer tokenizer = CSVChunker.tokenize(channel, chunk, charset, fieldChar, quoteChar);
+							ArrayList<String> fieldValues = new ArrayList<String>();
+							int rowNumber = chunk.firstRow;
+							while (tokenizer.readRow(fieldValues, inferKeep)) {
+								if (rowNumber != 0 || !context.hasHeader) {
+									setFieldType(context, types, fieldValues);
+								}
+								rowNumber++;
 							}
-
-							FieldDefinition field = new FieldDefinition();
-							field.setBaseType(BaseTypes.VARIANT);
-							field.setName(name);
-							field.setOrdinal(i);
-							field.setDescription("");
-							it.addField(field);
-
-							fieldIndices.put(name, i);
+							return types;
 						}
-					} catch (Exception e) {
-						throw new InvalidRequestException("Error parsing headers into DataShape - " + e.getMessage(),
-								RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
-
+					});
+				}
+				BaseTypes[] types = newFieldTypes(it);
+				for (BaseTypes[] chunkTypes : runInOrder(inferTasks)) {
+					for (int i = 0; i < types.length; i++) {
+						types[i] = mergeFieldType(types[i], chunkTypes[i]);
 					}
 				}
-			} else {
-				// use custom headers
-				try {
-					String[] headers = _customHeaders.split(",");
-					int i = 0;
-					for (String header : headers) {
-						FieldDefinition field = new FieldDefinition();
-						field.setBaseType(BaseTypes.VARIANT);
-						field.setName(header);
-						field.setOrdinal(i);
-						field.setDescription("");
-						it.addField(field);
+				applyFieldTypes(it, types);
+				context.stats.time(ParseStatistics.Phase.INFER, inferring);
+			}
 
-						fieldIndices.put(header, i);
-						i++;
+			final HashMap<String, Integer> columnIndices = getColumnIndices(context, it, columnMappings);
+			final int latitudeCol = latitudeField != null ? latitudeField.intValue() : -1;
+			final int longitudeCol = longitudeField != null ? longitudeField.intValue() : -1;
+			final boolean[] keep = getColumnMask(columnIndices, latitudeCol, longitudeCol);
+
+			ArrayList<Callable<ArrayList<ValueCollection>>> parseTasks = new ArrayList<Callable<ArrayList<ValueCollection>>>();
+			for (final CSVChunker.Chunk chunk : chunks) {
+				parseTasks.add(new Callable<ArrayList<ValueCollection>>() {
+					@Override
+					public ArrayList<ValueCollection> call() throws Exception {
+						ArrayList<ValueCollection> rows = new ArrayList<ValueCollection>();
+						long start = System.nanoTime();
+						// collecting the rows of a chunk is too cheap to time, they are added below
+						long[] nanos = new long[2];
+						CSVTokenizer tokenizer = CSVChunker.tokenize(channel, chunk, charset, fieldChar, quoteChar);
+						ArrayList<String> fieldValues = new ArrayList<String>();
+						int rowNumber = chunk.firstRow;
+						try {
+							while (tokenizer.readRow(fieldValues, keep)) {
+								long row = System.nanoTime();
+								ValueCollection values = processFieldSet(context, it, fieldValues, columnIndices,
+										latitudeCol, longitudeCol, dateFormat, rowNumber);
+								nanos[0] += System.nanoTime() - row;
+								if (values != null) {
+									rows.add(values);
+								}
+								rowNumber++;
+							}
+						} finally {
+							addRowPhases(context.stats, start, nanos);
+						}
+						return rows;
 					}
-				} catch (Exception e) {
-					throw new InvalidRequestException("Error parsing custom headers into DataShape - " + e.getMessage(),
-							RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+				});
+			}
+			ArrayList<ArrayList<ValueCollection>> chunkRows = runInOrder(parseTasks);
+			long start = System.nanoTime();
+			for (ArrayList<ValueCollection> rows : chunkRows) {
+				for (ValueCollection values : rows) {
+					it.addRow(values);
+				}
+			}
+			context.stats.time(ParseStatistics.Phase.ADD_ROW, start);
+		} finally {
+			try {
+				stream.close();
+			} catch (Exception eClose) {
+			}
+		}
+	}
+
+	// runs the tasks on the parse pool and returns their results in task order. The
+	// first failure cancels whatever is still running and is rethrown as is
+	private <T> ArrayList<T> runInOrder(List<Callable<T>> tasks) throws Exception {
+		ArrayList<Future<T>> futures = new ArrayList<Future<T>>();
+		for (Callable<T> task : tasks) {
+			futures.add(getExecutor().submit(asCaller(task)));
+		}
+		ArrayList<T> results = new ArrayList<T>();
+		try {
+			for (Future<T> future : futures) {
+				results.add(future.get());
+			}
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception) e.getCause();
+			}
+			throw e;
+		} finally {
+			for (Future<T> future : futures) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	// the pool threads don't carry the ThingWorx context of the service call, so the
+	// task runs with the caller's, entity lookups and writes included
+	private static <T> Callable<T> asCaller(final Callable<T> task) {
+		final SecurityContext securityContext = ThreadLocalContext.getSecurityContext();
+		return new Callable<T>() {
+			@Override
+			public T call() throws Exception {
+				ThreadLocalContext.setSecurityContext(securityContext);
+				try {
+					return task.call();
+				} finally {
+					ThreadLocalContext.cleanupContext();
 				}
 			}
-		} else if (rowNumber == 1 && _hasHeader && !_hasDatashape) {
-			setFieldType(it, fieldValues, fieldIndices);
+		};
+	}
+
+	protected void readCSV(Reader reader, String fieldDelimiter, String stringDelimiter, CSVRowHandler handler)
+			throws Exception {
+		readCSV(reader, fieldDelimiter, stringDelimiter, null, handler);
+	}
+
+	// keep has an entry per column, columns that are false or past its end reach
+	// the handler as null values
+	protected void readCSV(Reader reader, String fieldDelimiter, String stringDelimiter, boolean[] keep,
+			CSVRowHandler handler) throws Exception {
+		CSVTokenizer tokenizer = new CSVTokenizer(reader, delimiterChar(fieldDelimiter, "fieldDelimiter"),
+				delimiterChar(stringDelimiter, "stringDelimiter"));
+		try {
+			int rowNumber = 0;
+			ArrayList<String> fieldValues = new ArrayList<String>();
+			while (tokenizer.readRow(fieldValues, keep)) {
+				handler.handleRow(fieldValues, rowNumber);
+				rowNumber++;
+			}
+		} finally {
+			try {
+				reader.close();
+			} catch (Exception eClose) {
+			}
 		}
+	}
 
-		if (rowNumber != 0 || _hasHeader == false) {
+	// converts a row of field values, returns null for the header row and rows the
+	// filter drops. The field types are already settled here, either by the data
+	// shape or by the inference pass, so every value is converted exactly once and
+	// the infotable is only read
+	protected ValueCollection processFieldSet(ParseContext context, InfoTable it, ArrayList<String> fieldValues,
+			HashMap<String, Integer> fieldIndices, int latitudeField, int longitudeField, String dateFormat,
+			int rowNumber) throws Exception {
+		if (rowNumber != 0 || !context.hasHeader) {
+			if (context.filter != null && !context.filter.matches(it, fieldIndices, fieldValues)) {
+				return null;
+			}
+			ParseErrors errors = context.errors;
+			if (errors != null) {
+				int columns = columnsRead(fieldIndices, latitudeField, longitudeField);
+				if (fieldValues.size() < columns) {
+					errors.add(rowNumber, null, null,
+							"Row has " + fieldValues.size() + " columns, " + columns + " are needed");
+					return null;
+				}
+			}
 			// parse row (field set) into the correct infotable row and append
 			ValueCollection values = new ValueCollection();
 			for (FieldDefinition fieldDefinition : it.getDataShape().getFields().values()) {
@@ -479,10 +2732,14 @@ public class Parsley extends Resource {
 							String dateValue = (String) fieldValues.get(colIndex);
 							if (dateValue != null && !dateValue.isEmpty()) {
 								if (dateFormat != null) {
-									values.put(fieldDefinition.getName(),
-											BaseTypes.ConvertToPrimitive(
-													DateUtilities.parseDateTime(dateValue, dateFormat),
-													fieldDefinition.getBaseType()));
+									DateParser dates = DateParser.forFormat(dateFormat);
+									if (errors != null && !dates.isDate(dateValue)) {
+										errors.add(rowNumber, fieldDefinition.getName(), dateValue,
+												"Not a date in the format " + dateFormat);
+										break;
+									}
+									values.put(fieldDefinition.getName(), BaseTypes
+											.ConvertToPrimitive(dates.parse(dateValue), fieldDefinition.getBaseType()));
 								} else {
 									values.put(fieldDefinition.getName(),
 											BaseTypes.ConvertToPrimitive(dateValue, fieldDefinition.getBaseType()));
@@ -492,6 +2749,10 @@ public class Parsley extends Resource {
 						case NUMBER:
 							String numberValue = (String) fieldValues.get(colIndex);
 							if (numberValue != null && !numberValue.isEmpty()) {
+								if (errors != null && !TypeClassifier.isDecimal(numberValue)) {
+									errors.add(rowNumber, fieldDefinition.getName(), numberValue, "Not a number");
+									break;
+								}
 								values.put(fieldDefinition.getName(),
 										BaseTypes.ConvertToPrimitive(numberValue, fieldDefinition.getBaseType()));
 							}
@@ -510,29 +2771,16 @@ public class Parsley extends Resource {
 								if (value != null && !value.isEmpty()) {
 
 									// check that its really a location
-									if (value.matches(
-											"^[-+]?([1-8]?\\d(\\.\\d+)?|90(\\.0+)?),\\s*[-+]?(180(\\.0+)?|((1[0-7]\\d)|([1-9]?\\d))(\\.\\d+)?)$")) {
+									if (TypeClassifier.isLocation(value)) {
 										values.put(fieldDefinition.getName(),
 												BaseTypes.ConvertToPrimitive(value, fieldDefinition.getBaseType()));
+									} else if (errors != null) {
+										errors.add(rowNumber, fieldDefinition.getName(), value, "Not a location");
 									} else {
-										if (!_hasDatashape) {
-											// need to fix the old values which as now json objects
-											for (ValueCollection row : it.getRows()) {
-												Location location = (Location) row.getValue(fieldDefinition.getName());
-												String stringLocation = location.getLatitude() + ","
-														+ location.getLongitude();
-												row.SetStringValue(fieldDefinition.getName(), stringLocation);
-											}
-
-											it.getField(fieldDefinition.getName()).setBaseType(BaseTypes.STRING);
-											values.put(fieldDefinition.getName(),
-													BaseTypes.ConvertToPrimitive(value, fieldDefinition.getBaseType()));
-										} else {
-											throw new InvalidRequestException(
-													"Error parsing location for " + fieldDefinition.getName()
-															+ " - at row  " + rowNumber,
-													RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
-										}
+										throw new InvalidRequestException(
+												"Error parsing location for " + fieldDefinition.getName()
+														+ " - at row  " + rowNumber,
+												RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 									}
 								}
 							}
@@ -541,42 +2789,25 @@ public class Parsley extends Resource {
 							String integerValue = (String) fieldValues.get(colIndex);
 							if (integerValue != null && !integerValue.isEmpty()) {
 								// are we really an int, or are we a double?
-								try {
-									Integer.parseInt(integerValue);
+								if (TypeClassifier.isInteger(integerValue)) {
 									values.put(fieldDefinition.getName(),
 											BaseTypes.ConvertToPrimitive(integerValue, fieldDefinition.getBaseType()));
-								} catch (Exception e) {
-									if (!_hasDatashape) {
-										// its actually a number..
-										it.getField(fieldDefinition.getName()).setBaseType(BaseTypes.NUMBER);
-										values.put(fieldDefinition.getName(), BaseTypes.ConvertToPrimitive(integerValue,
-												fieldDefinition.getBaseType()));
-									} else {
-										throw new InvalidRequestException(
-												"Error parsing integer for " + fieldDefinition.getName() + " - at row  "
-														+ rowNumber + " - " + e.getMessage(),
-												RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
-									}
+								} else if (errors != null) {
+									errors.add(rowNumber, fieldDefinition.getName(), integerValue, "Not an integer");
+								} else {
+									// worded the way Integer.parseInt reports it
+									throw new InvalidRequestException(
+											"Error parsing integer for " + fieldDefinition.getName() + " - at row  "
+													+ rowNumber + " - For input string: \"" + integerValue + "\"",
+											RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 								}
 							}
 							break;
 						case BOOLEAN:
 							String boolValue = (String) fieldValues.get(colIndex);
-							if (boolValue != null) {
-								if (!_hasDatashape) {
-									// make sure this is really a boolean
-									if (boolValue.equals("true") || boolValue.equals("false")) {
-										values.put(fieldDefinition.getName(),
-												BaseTypes.ConvertToPrimitive(boolValue, BaseTypes.STRING));
-									} else {
-										it.getField(fieldDefinition.getName()).setBaseType(BaseTypes.STRING);
-										values.put(fieldDefinition.getName(),
-												BaseTypes.ConvertToPrimitive(boolValue, BaseTypes.STRING));
-									}
-								} else {
-									values.put(fieldDefinition.getName(),
-											BaseTypes.ConvertToPrimitive(boolValue, BaseTypes.STRING));
-								}
+							if (boolValue != null && !boolValue.isEmpty()) {
+								values.put(fieldDefinition.getName(),
+										BaseTypes.ConvertToPrimitive(boolValue, BaseTypes.STRING));
 							}
 							break;
 						default:
@@ -585,37 +2816,21 @@ public class Parsley extends Resource {
 								values.put(fieldDefinition.getName(),
 										BaseTypes.ConvertToPrimitive(value, fieldDefinition.getBaseType()));
 							}
-							break;
-						}
-					} catch (Exception e) {
-						if (!_hasDatashape) {
-							// if i hit this it must be a type mismatch, lets see if we can add it as
-							// whatever type it is..
-							if (fieldDefinition.getBaseType() == BaseTypes.DATETIME) {
-								// need to fix the old values which weve already converted, we need to convert
-								// them back to the originals
-								// this is likely really slow, but it makes sure that we give the correct output
-								// when this issue occurs
-								// eventually this will be refactored to scan the csv once to determin the types
-								// then write to the infotable, but this will work for now
-								for (ValueCollection row : it.getRows()) {
-									DateTime date = (DateTime) row.getValue(fieldDefinition.getName());
-									String stringDate = DateUtilities.formatDate(date, dateFormat);
-									row.SetStringValue(fieldDefinition.getName(), stringDate);
-								}
-							}
-							String value = (String) fieldValues.get(colIndex);
-							if (value != null) {
-								it.getField(fieldDefinition.getName()).setBaseType(getTypeFromString(value));
-								values.put(fieldDefinition.getName(),
-										BaseTypes.ConvertToPrimitive(value, getTypeFromString(value)));
-							}
-						} else {
-							throw new InvalidRequestException(
-									"Error parsing value for " + fieldDefinition.getName() + " - at row  " + rowNumber
-											+ " - " + e.getMessage(),
-									RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+							break;
+						}
+					} catch (InvalidRequestException e) {
+						throw e;
+					} catch (IndexOutOfBoundsException e) {
+						throw e;
+					} catch (Exception e) {
+						if (errors != null) {
+							errors.add(rowNumber, fieldDefinition.getName(), null, String.valueOf(e.getMessage()));
+							continue;
 						}
+						throw new InvalidRequestException(
+								"Error parsing value for " + fieldDefinition.getName() + " - at row  " + rowNumber
+										+ " - " + e.getMessage(),
+								RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
 					}
 				} else if ((fieldDefinition.getBaseType() == BaseTypes.LOCATION) && (latitudeField != -1)
 						&& (longitudeField != -1)) {
@@ -628,11 +2843,21 @@ public class Parsley extends Resource {
 					}
 				}
 			}
-			it.addRow(values);
+			return values;
+		}
+		return null;
+	}
+
+	// the highest column a row is read from, plus one
+	private static int columnsRead(HashMap<String, Integer> fieldIndices, int latitudeField, int longitudeField) {
+		int columns = Math.max(latitudeField, longitudeField) + 1;
+		for (Integer colIndex : fieldIndices.values()) {
+			columns = Math.max(columns, colIndex.intValue() + 1);
 		}
+		return columns;
 	}
 
-	protected Object parseJSONValue(Object value, String fieldShape) {
+	protected Object parseJSONValue(ParseContext context, Object value, String fieldShape) {
 		// check to see if this is a JSONN object or JSON array. If it is a JSON object
 		// this makes a recursive call to parse JSON using the current value as the
 		// input
@@ -640,52 +2865,29 @@ public class Parsley extends Resource {
 		// add each of items
 		try {
 			if (value instanceof JSONObject) {
-				InfoTable result = ParseJSON((JSONObject) value, fieldShape, _dateFormat, _minDateMilliseconds);
+				InfoTable result = parseJSON(context, (JSONObject) value, fieldShape);
 				return result;
 			} else if (value instanceof JSONArray) {
-				InfoTable result = new InfoTable();
-				try {
-					result = InfoTableInstanceFactory.createInfoTableFromDataShape(fieldShape);
-				} catch (Exception e) {
-				}
+				InfoTable result = jsonArrayTable(fieldShape);
 				for (int i = 0; i < ((JSONArray) value).length(); i++) {
-					Object item = ((JSONArray) value).get(i);
-					if (item instanceof JSONObject || item instanceof JSONArray) {
-						InfoTable itemTable = ParseJSON((JSONObject) item, fieldShape, _dateFormat,
-								_minDateMilliseconds);
-						ValueCollection values = itemTable.getRow(0);
-						result.setDataShape(itemTable.getDataShape());
-						result.addRow(values);
-					} else {
-						// only add a new field if this is the first row
-						if (i == 0) {
-							FieldDefinition definition = new FieldDefinition();
-							definition.setName("values");
-							definition.setOrdinal(i);
-							definition.setBaseType(getType(item));
-							result.addField(definition);
-						}
-						ValueCollection values = new ValueCollection();
-						values.put("values", BaseTypes.ConvertToPrimitive(item, getType(item)));
-						result.addRow(values);
-					}
+					addJSONArrayItem(context, result, ((JSONArray) value).get(i), i);
 				}
 				return result;
 
-			} else if (IsDate(value)) {
+			} else if (IsDate(context, value)) {
 				// TODO: check if they pass in a dateShape and if the field type is not a date
 				// don't attempt to parse
 				try {
 					// if it's a date type, parse it using the passed in date format. If it's a RAW
 					// json date, it comparsed the number value against the mindate milliseconds
-					if (_dateFormat == "RAW") {
+					if ("RAW".equals(context.dateFormat)) {
 						Double v = new Double(Double.parseDouble(value.toString()));
-						if (v % 1 == 0 && v >= _minDateMilliseconds) {
+						if (v % 1 == 0 && v >= context.minDateMilliseconds) {
 							return BaseTypes.ConvertToPrimitive(new Date(v.longValue()), BaseTypes.DATETIME);
 						}
 						;
 					} else {
-						return BaseTypes.ConvertToPrimitive(DateUtilities.parseDateTime((String) value, _dateFormat),
+						return BaseTypes.ConvertToPrimitive(DateParser.forFormat(context.dateFormat).parse((String) value),
 								BaseTypes.DATETIME);
 					}
 				} catch (Exception e) {
@@ -699,40 +2901,110 @@ public class Parsley extends Resource {
 			// catch (Exception e) {}
 
 		} catch (Exception e) {
-			_logger.error(e.getMessage());
+			recordJSONError(context, value, e);
 			return null;
 		}
 		return value;
 	}
 
-	protected BaseTypes getTypeFromString(String value) {
-		BaseTypes result = BaseTypes.STRING;
+	// adds element i of a JSON array to result, objects as a row of their own fields
+	// and anything else as a row with a single values field, nested arrays as an
+	// infotable value
+	protected void addJSONArrayItem(ParseContext context, InfoTable result, Object item, int i) throws Exception {
+		if (item instanceof JSONObject) {
+			addJSONArrayObject(context, result, (JSONObject) item);
+		} else {
+			// only add a new field if this is the first row
+			if (i == 0) {
+				FieldDefinition definition = new FieldDefinition();
+				definition.setName("values");
+				definition.setOrdinal(i);
+				definition.setBaseType(getType(context, item));
+				result.addField(definition);
+			}
+			Object value = item instanceof JSONArray ? parseJSONValue(context, item, null) : item;
+			ValueCollection values = new ValueCollection();
+			values.put("values", BaseTypes.ConvertToPrimitive(value, getType(context, item)));
+			result.addRow(values);
+		}
+	}
 
-		try {
-			if (IsDate(value)) {
-				result = BaseTypes.DATETIME;
-			} else if (value.matches("[-+]?\\d*\\.?\\d+")) {
-				// is it an int or a double?
-				try {
-					Integer.parseInt(value);
-					result = BaseTypes.INTEGER;
-				} catch (Exception e) {
-					// must be a double
-					result = BaseTypes.NUMBER;
+	// converts the members of an array element straight into a row of result. The
+	// elements share the one table, whose fields are the union of their keys: a key
+	// no earlier element had adds a field typed from its value, and a value that
+	// doesn't fit its field's type widens the field to a string
+	private void addJSONArrayObject(ParseContext context, InfoTable result, JSONObject item) throws Exception {
+		result.addRow(convertJSONObject(context, result, item, -1, false));
+	}
+
+	// the row for a JSON object against the fields of result, see addJSONArrayObject.
+	// With fixedFields the fields are left as they are instead: keys without a field
+	// are dropped and a value that doesn't fit its field is left empty
+	private ValueCollection convertJSONObject(ParseContext context, InfoTable result, JSONObject item, int row,
+			boolean fixedFields) throws Exception {
+		ValueCollection values = new ValueCollection();
+		Iterator<?> keys = item.keys();
+		while (keys.hasNext()) {
+			String key = (String) keys.next();
+			Object value = item.get(key);
+			FieldDefinition field;
+			if (result.hasField(key)) {
+				field = result.getField(key);
+			} else if (fixedFields) {
+				continue;
+			} else {
+				field = new FieldDefinition();
+				field.setName(key);
+				field.setOrdinal(result.getDataShape().getFields().size());
+				field.setBaseType(getType(context, value));
+				result.addField(field);
+			}
+			value = parseJSONValue(context, value, field.getDataShapeName());
+			try {
+				values.put(key, BaseTypes.ConvertToPrimitive(value, field.getBaseType()));
+			} catch (Exception e) {
+				if (!fixedFields) {
+					widenJSONField(context, result, field);
+					values.put(key, BaseTypes.ConvertToPrimitive(value, BaseTypes.STRING));
+				} else if (context.errors != null) {
+					context.errors.add(row, key, String.valueOf(value), String.valueOf(e.getMessage()));
+				} else {
+					_logger.error(e.getMessage());
 				}
-			} else if (value.matches(
-					"^[-+]?([1-8]?\\d(\\.\\d+)?|90(\\.0+)?),\\s*[-+]?(180(\\.0+)?|((1[0-7]\\d)|([1-9]?\\d))(\\.\\d+)?)$")) {
-				result = BaseTypes.LOCATION;
-			} else if (value.equals("true") || value.equals("false")) {
-				result = BaseTypes.BOOLEAN;
 			}
-		} catch (Exception e) {
-			return result;
 		}
-		return result;
+		return values;
+	}
+
+	// makes field a string, converting the values of the rows already added
+	private static void widenJSONField(ParseContext context, InfoTable result, FieldDefinition field)
+			throws Exception {
+		field.setBaseType(BaseTypes.STRING);
+		context.stats.fallback();
+		String name = field.getName();
+		for (ValueCollection row : result.getRows()) {
+			IPrimitiveType<?, ?> value = row.get(name);
+			if (value != null && value.getValue() != null) {
+				row.put(name, BaseTypes.ConvertToPrimitive(value.getValue(), BaseTypes.STRING));
+			}
+		}
+	}
+
+	private static void recordJSONError(ParseContext context, Object value, Exception e) {
+		if (context.errors != null) {
+			context.errors.add(-1, null,
+					value instanceof JSONObject || value instanceof JSONArray ? null : String.valueOf(value),
+					String.valueOf(e.getMessage()));
+		} else {
+			_logger.error(e.getMessage());
+		}
+	}
+
+	protected BaseTypes getTypeFromString(ParseContext context, String value) {
+		return context.classifier.classify(value);
 	}
 
-	protected BaseTypes getType(Object value) {
+	protected BaseTypes getType(ParseContext context, Object value) {
 		BaseTypes result;
 
 		try {
@@ -740,7 +3012,7 @@ public class Parsley extends Resource {
 
 			if (value instanceof JSONObject || value instanceof JSONArray) {
 				result = BaseTypes.INFOTABLE;
-			} else if (IsDate(value)) {
+			} else if (IsDate(context, value)) {
 				result = BaseTypes.DATETIME;
 			} else if (cname == Boolean.class.getName()) {
 				result = BaseTypes.BOOLEAN;
@@ -756,23 +3028,8 @@ public class Parsley extends Resource {
 		return result;
 	}
 
-	protected Boolean IsDate(Object value) {
-		try {
-			if (_dateFormat == "RAW") {
-				Double v = new Double(Double.parseDouble(value.toString()));
-				if (v % 1 == 0 && v >= _minDateMilliseconds) {
-					new Date(v.longValue());
-				} else {
-					return false;
-				}
-			} else {
-				DateUtilities.parseDateTime((String) value, _dateFormat);
-			}
-			;
-			return true;
-		} catch (Exception e) {
-			return false;
-		}
+	protected Boolean IsDate(ParseContext context, Object value) {
+		return context.classifier.isDate(value);
 	}
 
 	@SuppressWarnings("deprecation")
@@ -791,98 +3048,103 @@ public class Parsley extends Resource {
 			@ThingworxServiceParameter(name = "rowCacheSize", description = "Number of rows to cache in the stream reader", baseType = "INTEGER", aspects = {
 					"defaultValue:100" }) Integer rowCacheSize,
 			@ThingworxServiceParameter(name = "streamBufferSize", description = "Buffer size of the stream reader", baseType = "INTEGER", aspects = {
-					"defaultValue:4096" }) Integer streamBufferSize)
+					"defaultValue:4096" }) Integer streamBufferSize,
+			@ThingworxServiceParameter(name = "filter", description = "Only keep rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter)
 			throws Exception {
 
 		InfoTable it = new InfoTable();
 
-		_hasHeader = hasHeader;
-		_dateFormat = dateFormat;
-
-		if (!(fileRepository != null && !fileRepository.isEmpty())) {
-			throw new InvalidRequestException("File Repository Must Be Specified",
-					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
-		}
-
-		Thing thing = ThingUtilities.findThing(fileRepository);
-		if (thing == null) {
-			throw new InvalidRequestException("File Repository [" + fileRepository + "] Does Not Exist",
-					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
-		}
-		if (!(thing instanceof FileRepositoryThing)) {
-			throw new InvalidRequestException("Thing [" + fileRepository + "] Is Not A File Repository",
-					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
-		}
-		FileRepositoryThing repo = (FileRepositoryThing) thing;
-
-		if (!(dataShape != null && !dataShape.isEmpty())) {
-			_hasDatashape = false;
-		} else {
-			_hasDatashape = true;
-			it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
-		}
-		;
-
-		FileInputStream excelFile;
-		try {
-			excelFile = repo.openFileForRead(path);
-		} catch (Exception eOpen) {
-			throw new InvalidRequestException(
-					"Unable To Open [" + path + "] in [" + fileRepository + "] : " + eOpen.getMessage(),
-					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+		FileRepositoryThing repo = getFileRepository(fileRepository);
+		FileKey file = FileKey.of(repo, fileRepository, path);
+		String parameters = cacheParameters("ParseXLSX", dataShape, hasHeader, sheetName, dateFormat, filter);
+		ParseStatistics.Call call = _statistics.start("ParseXLSX");
+		InfoTable cached = getResultCache().get(file, parameters);
+		if (cached != null) {
+			call.cacheHit();
+			call.succeeded(cached.getRowCount());
+			call.end();
+			return cached;
 		}
 
-		Workbook workbook;
+		ParseExecutor.Admission admission = admit(call, getFileSize(repo, path));
 		try {
-			workbook = StreamingReader.builder().rowCacheSize(rowCacheSize).bufferSize(streamBufferSize)
-					.open(excelFile);
-		} catch (Exception eOpen) {
-			excelFile.close();
-			throw new InvalidRequestException("Unable To Open [" + path + "] in [" + fileRepository
-					+ "] -- invalid XLSX file : " + eOpen.getMessage(),
-					RESTAPIConstants.StatusCode.STATUS_INTERNAL_ERROR);
+			boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+			if (hasDatashape) {
+				it = InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape);
+			}
+			ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS, hasDatashape,
+					hasHeader != null && hasHeader, null, null, RowFilter.parse(filter, dateFormat), null, call);
+			call.bytesRead(file.size);
+
+			parseXLSX(context, it, repo, fileRepository, path, sheetName, rowCacheSize, streamBufferSize, 0, null);
+			getResultCache().put(file, parameters, it);
+			call.succeeded(it.getRowCount());
+			return it;
+		} finally {
+			admission.release();
+			call.end();
 		}
+	}
 
-		Sheet sheet;
+	// reads the sheet into it, or only its first maxRows data rows when maxRows is
+	// above 0. When job is set the file is read through it, so the job can report
+	// progress and stop the parse; the file is closed either way
+	@SuppressWarnings("deprecation")
+	protected InfoTable parseXLSX(ParseContext context, InfoTable it, FileRepositoryThing repo, String fileRepository,
+			String path, String sheetName, Integer rowCacheSize, Integer streamBufferSize, int maxRows, ParseJob job)
+			throws Exception {
+		long start = System.nanoTime();
+		FileInputStream excelFile = openFileStream(repo, fileRepository, path);
+		Workbook workbook = null;
 		try {
-			sheet = workbook.getSheet(sheetName);
-		} catch (Exception eOpen) {
+			try {
+				workbook = StreamingReader.builder().rowCacheSize(rowCacheSize).bufferSize(streamBufferSize)
+						.open(job != null ? job.track(excelFile) : excelFile);
+				start = context.stats.time(ParseStatistics.Phase.OPEN, start);
+			} catch (Exception eOpen) {
+				if (job != null) {
+					// a stopped job reports why it stopped rather than a bad file
+					job.checkStopped();
+				}
+				throw new InvalidRequestException("Unable To Open [" + path + "] in [" + fileRepository
+						+ "] -- invalid XLSX file : " + eOpen.getMessage(),
+						RESTAPIConstants.StatusCode.STATUS_INTERNAL_ERROR);
+			}
 
-			excelFile.close();
-			throw new InvalidRequestException("Unable To Open [" + sheetName + "] in [" + path
-					+ "] -- invalid Sheet Name : " + eOpen.getMessage(),
-					RESTAPIConstants.StatusCode.STATUS_INTERNAL_ERROR);
-		}
+			Sheet sheet;
+			try {
+				sheet = workbook.getSheet(sheetName);
+			} catch (Exception eOpen) {
+				throw new InvalidRequestException("Unable To Open [" + sheetName + "] in [" + path
+						+ "] -- invalid Sheet Name : " + eOpen.getMessage(),
+						RESTAPIConstants.StatusCode.STATUS_INTERNAL_ERROR);
+			}
+			if (job != null) {
+				job.startPhase("Parsing");
+			}
 
-		Iterator<Row> iterator = sheet.iterator();
+			Iterator<Row> iterator = sheet.iterator();
 
-		Integer r = 0;
-		Integer c = 0;
+			Integer r = 0;
+			Integer c = 0;
 
-		while (iterator.hasNext()) {
+			int dataRows = 0;
+			// field name to cell position for the filter, set up once the fields are known
+			HashMap<String, Integer> cellIndices = null;
+			// the rows are read, converted and added one at a time
+			while (iterator.hasNext() && (maxRows <= 0 || dataRows < maxRows)) {
 
-			Row currentRow = iterator.next();
-			Iterator<Cell> cellIterator = currentRow.iterator();
-			c = 0;
-			JSONObject values = new JSONObject();
-			while (cellIterator.hasNext()) {
-				Cell currentCell = cellIterator.next();
+				Row currentRow = iterator.next();
+				Iterator<Cell> cellIterator = currentRow.iterator();
+				c = 0;
+				ArrayList<Object> cells = new ArrayList<Object>();
+				while (cellIterator.hasNext()) {
+					Cell currentCell = cellIterator.next();
 
-				if (r == 0 && !_hasDatashape) {
-					if (hasHeader) {
-						Object nameObj = "Error" + (c + 1);
-						switch (currentCell.getCellType()) {
-						case Cell.CELL_TYPE_STRING:
-							nameObj = currentCell.getStringCellValue();
-							break;
-						case Cell.CELL_TYPE_BOOLEAN:
-							nameObj = currentCell.getBooleanCellValue();
-							break;
-						case Cell.CELL_TYPE_NUMERIC:
-							nameObj = currentCell.getNumericCellValue();
-							break;
-						case Cell.CELL_TYPE_FORMULA:
-							switch (currentCell.getCachedFormulaResultType()) {
+					if (r == 0 && !context.hasDatashape) {
+						if (context.hasHeader) {
+							Object nameObj = "Error" + (c + 1);
+							switch (currentCell.getCellType()) {
 							case Cell.CELL_TYPE_STRING:
 								nameObj = currentCell.getStringCellValue();
 								break;
@@ -892,96 +3154,479 @@ public class Parsley extends Resource {
 							case Cell.CELL_TYPE_NUMERIC:
 								nameObj = currentCell.getNumericCellValue();
 								break;
+							case Cell.CELL_TYPE_FORMULA:
+								switch (currentCell.getCachedFormulaResultType()) {
+								case Cell.CELL_TYPE_STRING:
+									nameObj = currentCell.getStringCellValue();
+									break;
+								case Cell.CELL_TYPE_BOOLEAN:
+									nameObj = currentCell.getBooleanCellValue();
+									break;
+								case Cell.CELL_TYPE_NUMERIC:
+									nameObj = currentCell.getNumericCellValue();
+									break;
+								}
+								break;
 							}
-							break;
+							String name = String.valueOf(nameObj);
+
+							// get rid of any weird null characters, strings, parens, which arent allowed in
+							// property names
+							name = name.replaceAll("[\uFEFF-\uFFFF]", "");
+							name = name.replaceAll("\\s+", "");
+							name = name.replaceAll("[(]", "_");
+							name = name.replaceAll("[)]", "");
+
+							// cant start with a number
+							if (Character.isDigit(name.charAt(0))) {
+								name = "_" + name;
+							}
+
+							FieldDefinition field = new FieldDefinition();
+							field.setBaseType(BaseTypes.VARIANT);
+							field.setName(name);
+							field.setOrdinal(c);
+							field.setDescription("");
+							it.addField(field);
+						} else {
+							FieldDefinition field = new FieldDefinition();
+
+							field.setBaseType(BaseTypes.VARIANT);
+							field.setName("Value" + (c + 1));
+							field.setOrdinal(c);
+							field.setDescription("");
+							it.addField(field);
 						}
-						String name = String.valueOf(nameObj);
+					}
 
-						// get rid of any weird null characters, strings, parens, which arent allowed in
-						// property names
-						name = name.replaceAll("[\uFEFF-\uFFFF]", "");
-						name = name.replaceAll("\\s+", "");
-						name = name.replaceAll("[(]", "_");
-						name = name.replaceAll("[)]", "");
+					cells.add(getCellValue(currentCell));
+					c++;
+				}
 
-						// cant start with a number
-						if (Character.isDigit(name.charAt(0))) {
-							name = "_" + name;
+				start = context.stats.time(ParseStatistics.Phase.TOKENIZE, start);
+				boolean dataRow = !context.hasHeader || r > 0;
+				ArrayList<FieldDefinition> fields = it.getDataShape().getFields().getOrderedFieldsByOrdinal();
+				if (dataRow && context.filter != null) {
+					if (cellIndices == null) {
+						cellIndices = new HashMap<String, Integer>();
+						for (int i = 0; i < fields.size(); i++) {
+							cellIndices.put(fields.get(i).getName(), i);
 						}
+					}
+					ArrayList<String> text = new ArrayList<String>(cells.size());
+					for (Object cell : cells) {
+						text.add(String.valueOf(cell));
+					}
+					// dropped rows are never converted and don't change the field types
+					if (!context.filter.matches(it, cellIndices, text)) {
+						r++;
+						continue;
+					}
+				}
 
-						FieldDefinition field = new FieldDefinition();
-						field.setBaseType(BaseTypes.VARIANT);
-						field.setName(name);
-						field.setOrdinal(c);
-						field.setDescription("");
-						it.addField(field);
-					} else {
-						FieldDefinition field = new FieldDefinition();
+				JSONObject values = new JSONObject();
+				for (int i = 0; i < cells.size(); i++) {
+					FieldDefinition field = fields.get(i);
+					Object value = cells.get(i);
 
-						field.setBaseType(BaseTypes.VARIANT);
-						field.setName("Value" + (c + 1));
-						field.setOrdinal(c);
-						field.setDescription("");
-						it.addField(field);
+					BaseTypes type = getTypeFromString(context, String.valueOf(value));
+
+					// the field type has to fit every value so far, not just the last one
+					FieldDefinition definition = it.getField(field.getName());
+					BaseTypes merged = mergeFieldType(definition.getBaseType(), type);
+					if (merged != definition.getBaseType()) {
+						if (definition.getBaseType() != BaseTypes.VARIANT) {
+							context.stats.fallback();
+						}
+						definition.setBaseType(merged);
+					}
+
+					try {
+						values.put(field.getName(), BaseTypes.ConvertToPrimitive(value, type));
+					} catch (Exception e) {
+						context.stats.fallback();
+						values.put(field.getName(), BaseTypes.ConvertToPrimitive(value, BaseTypes.STRING));
+					}
+				}
+				start = context.stats.time(ParseStatistics.Phase.CONVERT, start);
+
+				if (dataRow) {
+					it.AddRow(values);
+					dataRows++;
+					if (job != null) {
+						job.rowParsed();
 					}
+					start = context.stats.time(ParseStatistics.Phase.ADD_ROW, start);
+				}
+				r++;
+			}
+
+			return it;
+		} finally {
+			if (workbook != null) {
+				try {
+					workbook.close();
+				} catch (Exception eClose) {
 				}
+			}
+			try {
+				excelFile.close();
+			} catch (Exception eClose) {
+			}
+		}
+	}
 
-				FieldDefinition field = it.getDataShape().getFields().getOrderedFieldsByOrdinal().get(c);
+	@SuppressWarnings("deprecation")
+	private Object getCellValue(Cell cell) {
+		Object value = "Error - unknown type";
+		switch (cell.getCellType()) {
+		case Cell.CELL_TYPE_STRING:
+			value = cell.getStringCellValue();
+			break;
+		case Cell.CELL_TYPE_BOOLEAN:
+			value = cell.getBooleanCellValue();
+			break;
+		case Cell.CELL_TYPE_NUMERIC:
+			value = cell.getNumericCellValue();
+			break;
+		case Cell.CELL_TYPE_FORMULA:
+			switch (cell.getCachedFormulaResultType()) {
+			case Cell.CELL_TYPE_STRING:
+				value = cell.getStringCellValue();
+				break;
+			case Cell.CELL_TYPE_BOOLEAN:
+				value = cell.getBooleanCellValue();
+				break;
+			case Cell.CELL_TYPE_NUMERIC:
+				value = cell.getNumericCellValue();
+				break;
+			}
+			break;
+		}
+		return value;
+	}
 
-				Object value = "Error - unknown type";
+	@ThingworxServiceDefinition(name = "StartParseCSVJob", description = "Parse a CSV file from a repository in the background, returns the job id")
+	@ThingworxServiceResult(name = "result", description = "Job id", baseType = "STRING")
+	public String StartParseCSVJob(
+			@ThingworxServiceParameter(name = "fileRepository", description = "File repository name", baseType = "THINGNAME") final String fileRepository,
+			@ThingworxServiceParameter(name = "path", description = "Path to file", baseType = "STRING", aspects = {
+					"defaultValue:/" }) final String path,
+			@ThingworxServiceParameter(name = "dataShape", description = "Data shape", baseType = "DATASHAPENAME") final String dataShape,
+			@ThingworxServiceParameter(name = "hasHeader", description = "File has header row", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "columnMappings", description = "Column maps", baseType = "STRING") final String columnMappings,
+			@ThingworxServiceParameter(name = "latitudeField", description = "Latitude field index", baseType = "NUMBER") final Double latitudeField,
+			@ThingworxServiceParameter(name = "longitudeField", description = "Longitude field index", baseType = "NUMBER") final Double longitudeField,
+			@ThingworxServiceParameter(name = "dateFormat", description = "Date format", baseType = "STRING") final String dateFormat,
+			@ThingworxServiceParameter(name = "fieldDelimiter", description = "Field delimiter", baseType = "STRING", aspects = {
+					"defaultValue:," }) final String fieldDelimiter,
+			@ThingworxServiceParameter(name = "stringDelimiter", description = "String value delimiter", baseType = "STRING", aspects = {
+					"defaultValue:\"" }) final String stringDelimiter,
+			@ThingworxServiceParameter(name = "customFieldNames", description = "Comma sperated list of field names to use if there is no datashape", baseType = "STRING") String customHeaders,
+			@ThingworxServiceParameter(name = "columns", description = "Comma seperated list of field names to keep if there is no datashape, other columns are skipped", baseType = "STRING") String columns,
+			@ThingworxServiceParameter(name = "timeout", description = "Seconds before the job is stopped, 0 for no limit", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer timeout,
+			@ThingworxServiceParameter(name = "filter", description = "Only keep rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter,
+			@ThingworxServiceParameter(name = "maxErrors", description = "Tolerate bad values and rows and return up to this many of them with the result, 0 to fail on the first one", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer maxErrors)
+			throws Exception {
 
-				switch (currentCell.getCellType()) {
-				case Cell.CELL_TYPE_STRING:
-					value = currentCell.getStringCellValue();
-					break;
-				case Cell.CELL_TYPE_BOOLEAN:
-					value = currentCell.getBooleanCellValue();
-					break;
-				case Cell.CELL_TYPE_NUMERIC:
-					value = currentCell.getNumericCellValue();
-					break;
-				case Cell.CELL_TYPE_FORMULA:
-					switch (currentCell.getCachedFormulaResultType()) {
-					case Cell.CELL_TYPE_STRING:
-						value = currentCell.getStringCellValue();
-						break;
-					case Cell.CELL_TYPE_BOOLEAN:
-						value = currentCell.getBooleanCellValue();
-						break;
-					case Cell.CELL_TYPE_NUMERIC:
-						value = currentCell.getNumericCellValue();
-						break;
+		final FileRepositoryThing repo = getFileRepository(fileRepository);
+		final boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+		final ParseErrors errors = maxErrors != null && maxErrors > 0 ? new ParseErrors(maxErrors, _logger) : null;
+		ParseStatistics.Call call = _statistics.start("StartParseCSVJob");
+		final ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS,
+				hasDatashape, hasHeader != null && hasHeader, customHeaders, columns,
+				RowFilter.parse(filter, dateFormat), errors, call);
+		final ParseJob job = new ParseJob("ParseCSV", path, getFileSize(repo, path), timeoutMillis(timeout));
+		job.setErrors(errors);
+		// only the rows under the spill threshold are held in memory
+		final long spillBytes = getIntSetting("spillThreshold", 0) * 1024L * 1024;
+		long heapBytes = job.totalBytes;
+		if (spillBytes > 0) {
+			heapBytes = Math.min(heapBytes, (long) (spillBytes / getNumberSetting("heapPerFileByte", 8)));
+		}
+		return startJob(job, heapBytes, call, new Callable<InfoTable>() {
+			@Override
+			public InfoTable call() throws Exception {
+				InfoTable it = hasDatashape ? InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape)
+						: new InfoTable();
+				FileKey file = FileKey.of(repo, fileRepository, path);
+				String settings = csvSchemaSettings(context, fieldDelimiter, stringDelimiter, 0);
+				if (!hasDatashape) {
+					loadInferredShape(context, it, file, settings);
+				}
+				RowSpill spill = spillBytes > 0 ? new RowSpill(it, spillBytes, getSpillDirectory()) : null;
+				boolean parsed = false;
+				try {
+					if (spill == null) {
+						parseCSVFile(context, repo, fileRepository, path, it, columnMappings, fieldDelimiter,
+								stringDelimiter, latitudeField, longitudeField, dateFormat, job);
+					} else {
+						parseCSVFile(context, repo, fileRepository, path, it, spill, columnMappings, fieldDelimiter,
+								stringDelimiter, latitudeField, longitudeField, dateFormat, job);
+						spill.finish();
 					}
-					break;
+					parsed = true;
+				} catch (IndexOutOfBoundsException e) {
+					throw columnCountMismatch(e);
+				} finally {
+					if (!parsed && spill != null) {
+						spill.delete();
+					}
+				}
+				if (!hasDatashape) {
+					_schemaCache.put(file, settings, it.getDataShape());
 				}
+				if (errors != null) {
+					errors.logSummary(path);
+				}
+				if (spill != null && spill.isSpilled()) {
+					job.complete(spill);
+					return null;
+				}
+				if (spill != null) {
+					// everything fit under the threshold
+					it = spill.read(0, 0);
+					spill.delete();
+				}
+				return it;
+			}
+		});
+	}
+
+	@ThingworxServiceDefinition(name = "StartParseXLSXJob", description = "Parse an XLSX sheet from a repository in the background, returns the job id")
+	@ThingworxServiceResult(name = "result", description = "Job id", baseType = "STRING")
+	public String StartParseXLSXJob(
+			@ThingworxServiceParameter(name = "path", description = "", baseType = "STRING") final String path,
+			@ThingworxServiceParameter(name = "fileRepository", description = "", baseType = "THINGNAME") final String fileRepository,
+			@ThingworxServiceParameter(name = "hasHeader", description = "", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean hasHeader,
+			@ThingworxServiceParameter(name = "sheetName", description = "", baseType = "STRING") final String sheetName,
+			@ThingworxServiceParameter(name = "dateFormat", description = "", baseType = "STRING") String dateFormat,
+			@ThingworxServiceParameter(name = "dataShape", description = "", baseType = "DATASHAPENAME") final String dataShape,
+			@ThingworxServiceParameter(name = "rowCacheSize", description = "Number of rows to cache in the stream reader", baseType = "INTEGER", aspects = {
+					"defaultValue:100" }) final Integer rowCacheSize,
+			@ThingworxServiceParameter(name = "streamBufferSize", description = "Buffer size of the stream reader", baseType = "INTEGER", aspects = {
+					"defaultValue:4096" }) final Integer streamBufferSize,
+			@ThingworxServiceParameter(name = "timeout", description = "Seconds before the job is stopped, 0 for no limit", baseType = "INTEGER", aspects = {
+					"defaultValue:0" }) Integer timeout,
+			@ThingworxServiceParameter(name = "filter", description = "Only keep rows that match, e.g. status = 'FAULT' AND temperature > 80", baseType = "STRING") String filter)
+			throws Exception {
+
+		final FileRepositoryThing repo = getFileRepository(fileRepository);
+		final boolean hasDatashape = dataShape != null && !dataShape.isEmpty();
+		ParseStatistics.Call call = _statistics.start("StartParseXLSXJob");
+		final ParseContext context = new ParseContext(dateFormat, ParseContext.DEFAULT_MIN_DATE_MILLISECONDS,
+				hasDatashape, hasHeader != null && hasHeader, null, null, RowFilter.parse(filter, dateFormat), null,
+				call);
+		final ParseJob job = new ParseJob("ParseXLSX", path, getFileSize(repo, path), timeoutMillis(timeout));
+		return startJob(job, job.totalBytes, call, new Callable<InfoTable>() {
+			@Override
+			public InfoTable call() throws Exception {
+				InfoTable it = hasDatashape ? InfoTableInstanceFactory.createInfoTableFromDataShape(dataShape)
+						: new InfoTable();
+				job.startPhase("Reading");
+				return parseXLSX(context, it, repo, fileRepository, path, sheetName, rowCacheSize, streamBufferSize,
+						0, job);
+			}
+		});
+	}
+
+	@ThingworxServiceDefinition(name = "GetParseJobStatus", description = "State and progress of a background parse")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable GetParseJobStatus(
+			@ThingworxServiceParameter(name = "jobId", description = "Job id returned when the job was started", baseType = "STRING") String jobId)
+			throws Exception {
+		ParseJob job = getJob(jobId);
+
+		InfoTable it = new InfoTable();
+		addField(it, "jobId", BaseTypes.STRING, 0);
+		addField(it, "service", BaseTypes.STRING, 1);
+		addField(it, "path", BaseTypes.STRING, 2);
+		addField(it, "state", BaseTypes.STRING, 3);
+		addField(it, "phase", BaseTypes.STRING, 4);
+		addField(it, "rowsParsed", BaseTypes.LONG, 5);
+		addField(it, "bytesRead", BaseTypes.LONG, 6);
+		addField(it, "totalBytes", BaseTypes.LONG, 7);
+		addField(it, "error", BaseTypes.STRING, 8);
+		addField(it, "startTime", BaseTypes.DATETIME, 9);
+		addField(it, "endTime", BaseTypes.DATETIME, 10);
+		addField(it, "spilled", BaseTypes.BOOLEAN, 11);
+
+		ValueCollection values = new ValueCollection();
+		values.put("jobId", BaseTypes.ConvertToPrimitive(job.id, BaseTypes.STRING));
+		values.put("service", BaseTypes.ConvertToPrimitive(job.service, BaseTypes.STRING));
+		values.put("path", BaseTypes.ConvertToPrimitive(job.path, BaseTypes.STRING));
+		values.put("state", BaseTypes.ConvertToPrimitive(job.getState().name(), BaseTypes.STRING));
+		values.put("phase", BaseTypes.ConvertToPrimitive(job.getPhase(), BaseTypes.STRING));
+		values.put("rowsParsed", BaseTypes.ConvertToPrimitive(job.getRows(), BaseTypes.LONG));
+		values.put("bytesRead", BaseTypes.ConvertToPrimitive(job.getBytes(), BaseTypes.LONG));
+		values.put("totalBytes", BaseTypes.ConvertToPrimitive(job.totalBytes, BaseTypes.LONG));
+		if (job.getError() != null) {
+			values.put("error", BaseTypes.ConvertToPrimitive(job.getError(), BaseTypes.STRING));
+		}
+		values.put("startTime", BaseTypes.ConvertToPrimitive(new DateTime(job.startTime), BaseTypes.DATETIME));
+		if (job.isDone()) {
+			values.put("endTime", BaseTypes.ConvertToPrimitive(new DateTime(job.getEndTime()), BaseTypes.DATETIME));
+		}
+		values.put("spilled", BaseTypes.ConvertToPrimitive(job.getSpill() != null, BaseTypes.BOOLEAN));
+		it.addRow(values);
+		return it;
+	}
 
-				BaseTypes type = getTypeFromString(String.valueOf(value));
+	@ThingworxServiceDefinition(name = "GetParseJobResult", description = "Rows of a finished background parse, the job is removed once its last row is returned")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "INFOTABLE")
+	public InfoTable GetParseJobResult(
+			@ThingworxServiceParameter(name = "jobId", description = "Job id returned when the job was started", baseType = "STRING") String jobId,
+			@ThingworxServiceParameter(name = "offset", description = "Index of the first row to return", baseType = "NUMBER", aspects = {
+					"defaultValue:0" }) Double offset,
+			@ThingworxServiceParameter(name = "limit", description = "Maximum number of rows to return, 0 for all of them", baseType = "NUMBER", aspects = {
+					"defaultValue:0" }) Double limit)
+			throws Exception {
+		ParseJob job = getJob(jobId);
+		if (!job.isDone()) {
+			throw new InvalidRequestException("Parse Job [" + jobId + "] Is Still " + job.getState().name(),
+					RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+		}
+		if (job.getState() != ParseJob.State.COMPLETED) {
+			_jobs.remove(job.id);
+			throw new InvalidRequestException("Parse Job [" + jobId + "] " + job.getState().name() + " : "
+					+ job.getError(), RESTAPIConstants.StatusCode.STATUS_INTERNAL_ERROR);
+		}
 
-				if (it.getField(field.getName()).getBaseType() != BaseTypes.STRING
-						&& it.getField(field.getName()).getBaseType() != type) {
-					it.getField(field.getName()).setBaseType(type);
+		long first = offset != null ? Math.max(0, offset.longValue()) : 0;
+		long count = limit != null ? Math.max(0, limit.longValue()) : 0;
+		InfoTable page;
+		long rows;
+		RowSpill spill = job.getSpill();
+		if (spill != null) {
+			page = spill.read(first, count);
+			rows = spill.getRowCount();
+		} else {
+			InfoTable result = job.getResult();
+			rows = result.getRowCount();
+			if (first == 0 && count == 0) {
+				page = result;
+			} else {
+				page = new InfoTable(result.getDataShape().clone());
+				long end = count > 0 ? Math.min(rows, first + count) : rows;
+				for (long row = first; row < end; row++) {
+					page.addRow(result.getRow((int) row));
 				}
+			}
+		}
+		if (count == 0 || first + count >= rows) {
+			// the last page was handed out
+			_jobs.remove(job.id);
+			if (spill != null) {
+				job.discard();
+			}
+		}
+		return job.getErrors() != null ? withErrors(page, job.getErrors()) : page;
+	}
 
+	@ThingworxServiceDefinition(name = "CancelParseJob", description = "Stop a background parse, returns false if it had already finished")
+	@ThingworxServiceResult(name = "result", description = "Result", baseType = "BOOLEAN")
+	public Boolean CancelParseJob(
+			@ThingworxServiceParameter(name = "jobId", description = "Job id returned when the job was started", baseType = "STRING") String jobId)
+			throws Exception {
+		return getJob(jobId).cancel();
+	}
+
+	// runs the parse on the job pool once it is admitted. A job that is stopped
+	// while it waits for admission never starts
+	// heapBytes is the file size the admission is estimated from. A parse that spills
+	// its rows completes the job itself and returns null. The call is ended once the
+	// job is done, so its latency includes the time the job was queued
+	private String startJob(final ParseJob job, final long heapBytes, final ParseStatistics.Call call,
+			final Callable<InfoTable> parse) {
+		expireJobs();
+		_jobs.put(job.id, job);
+		// the job thread runs with the caller's ThingWorx context
+		final SecurityContext securityContext = ThreadLocalContext.getSecurityContext();
+		job.setFuture(getExecutor().submitJob(new Runnable() {
+			@Override
+			public void run() {
+				ThreadLocalContext.setSecurityContext(securityContext);
 				try {
-					values.put(field.getName(), BaseTypes.ConvertToPrimitive(value, type));
+					ParseExecutor.Admission admission = getExecutor().admit(heapBytes);
+					try {
+						if (job.start()) {
+							call.bytesRead(job.totalBytes);
+							InfoTable result = parse.call();
+							if (!job.isDone()) {
+								job.complete(result);
+							}
+							if (job.getState() == ParseJob.State.COMPLETED) {
+								call.succeeded(job.getRows());
+							}
+						}
+					} finally {
+						admission.release();
+					}
 				} catch (Exception e) {
-					values.put(field.getName(), BaseTypes.ConvertToPrimitive(value, BaseTypes.STRING));
+					if (job.getState() == ParseJob.State.RUNNING) {
+						_logger.error("Parse job " + job.id + " failed: " + e.getMessage());
+					}
+					job.fail(e);
+				} finally {
+					call.end();
+					ThreadLocalContext.cleanupContext();
 				}
-
-				c++;
 			}
+		}));
+		return job.id;
+	}
+
+	private ParseJob getJob(String jobId) throws Exception {
+		expireJobs();
+		ParseJob job = jobId != null ? _jobs.get(jobId) : null;
+		if (job == null) {
+			throw new InvalidRequestException("Parse Job [" + jobId + "] Does Not Exist",
+					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+		}
+		return job;
+	}
 
-			if (!hasHeader || r > 0) {
-				it.AddRow(values);
+	// drops finished jobs nobody fetched the result of
+	private void expireJobs() {
+		long cutoff = System.currentTimeMillis() - JOB_RETENTION;
+		for (ParseJob job : _jobs.values()) {
+			// the sweep and the job services can expire at the same time, only one discards
+			if (job.isDone() && job.getEndTime() < cutoff && _jobs.remove(job.id, job)) {
+				job.discard();
 			}
-			r++;
 		}
-		;
+	}
 
-		excelFile.close();
+	private static long timeoutMillis(Integer timeout) {
+		return timeout != null && timeout > 0 ? timeout * 1000L : 0;
+	}
 
+	// the result of a tolerant parse: one row with the parsed rows, the errors that
+	// were kept and the number of errors found in all
+	private static InfoTable withErrors(InfoTable result, ParseErrors errors) throws Exception {
+		InfoTable it = new InfoTable();
+		addField(it, "result", BaseTypes.INFOTABLE, 0);
+		addField(it, "errors", BaseTypes.INFOTABLE, 1);
+		addField(it, "errorCount", BaseTypes.LONG, 2);
+		ValueCollection values = new ValueCollection();
+		values.put("result", BaseTypes.ConvertToPrimitive(result, BaseTypes.INFOTABLE));
+		values.put("errors", BaseTypes.ConvertToPrimitive(errors.toInfoTable(), BaseTypes.INFOTABLE));
+		values.put("errorCount", BaseTypes.ConvertToPrimitive(errors.getCount(), BaseTypes.LONG));
+		it.addRow(values);
 		return it;
+	}
 
+	static void addField(InfoTable it, String name, BaseTypes baseType, int ordinal) {
+		FieldDefinition field = new FieldDefinition();
+		field.setName(name);
+		field.setBaseType(baseType);
+		field.setOrdinal(ordinal);
+		field.setDescription("");
+		it.addField(field);
 	}
 
 	@ThingworxServiceDefinition(name = "ParseXML", description = "Parse JSON")
@@ -993,24 +3638,33 @@ public class Parsley extends Resource {
 			@ThingworxServiceParameter(name = "dateFormat", description = "joda format - e.g. 'yyyy-MM-dd'T'HH:mm:ss.SSSZ' ", baseType = "STRING", aspects = {
 					"defaultValue:RAW" }) String dateFormat,
 			@ThingworxServiceParameter(name = "minDateMilliseconds", description = "i.e. 10000000000;  only used if dateFormat is undefined or RAW", baseType = "LONG", aspects = {
-					"defaultValue:100000000" }) Long minDateMilliseconds)
+					"defaultValue:100000000" }) Long minDateMilliseconds,
+			@ThingworxServiceParameter(name = "flatten", description = "Put nested values in fields with dotted names, e.g. device.location.lat, instead of nested infotables", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean flatten,
+			@ThingworxServiceParameter(name = "explodeArrays", description = "When flattening, repeat the row for every element of an array instead of numbering the elements", baseType = "BOOLEAN", aspects = {
+					"defaultValue:false" }) Boolean explodeArrays)
 			throws Exception {
 
-		InfoTable it = new InfoTable();
-
-		DOMSource domSource = new DOMSource(xml);
-		StringWriter writer = new StringWriter();
-		StreamResult result = new StreamResult(writer);
-		TransformerFactory tf = TransformerFactory.newInstance();
-		Transformer transformer = tf.newTransformer();
-		transformer.transform(domSource, result);
-
-		JSONObject json = XML.toJSONObject(writer.toString());
-
-		it = this.ParseJSON(json, dataShape, dateFormat, minDateMilliseconds);
-
-		return it;
-
+		ParseStatistics.Call call = _statistics.start("ParseXML");
+		try {
+			long start = System.nanoTime();
+			DOMSource domSource = new DOMSource(xml);
+			StringWriter writer = new StringWriter();
+			StreamResult result = new StreamResult(writer);
+			TransformerFactory tf = TransformerFactory.newInstance();
+			Transformer transformer = tf.newTransformer();
+			transformer.transform(domSource, result);
+
+			String text = writer.toString();
+			JSONObject json = XML.toJSONObject(text);
+			call.bytesRead(text.length());
+			call.time(ParseStatistics.Phase.TOKENIZE, start);
+
+			return parseJSON(call, json, dataShape, dateFormat, minDateMilliseconds, 0, flatten != null && flatten,
+					explodeArrays != null && explodeArrays);
+		} finally {
+			call.end();
+		}
 	}
 
 }
@@ -0,0 +1,114 @@
+package com.thingworx.resources.parsley;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.thingworx.types.InfoTable;
+
+// parsed results by file version and service parameters, so a repeat parse of an
+// unchanged file is answered with a copy instead of reading it again. The cache
+// is bounded by the estimated heap of the results it holds, estimated the same
+// way admission control does, and evicts the least recently used first. A
+// maximum of 0 turns it off
+final class ResultCache {
+
+	private final long maxBytes;
+	private final double heapPerFileByte;
+
+	// access ordered, so iteration starts at the least recently used entry
+	private final LinkedHashMap<CacheKey, Entry> entries = new LinkedHashMap<CacheKey, Entry>(16, 0.75f, true);
+
+	// guarded by this
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	private static final class Entry {
+		final InfoTable result;
+		final long bytes;
+
+		Entry(InfoTable result, long bytes) {
+			this.result = result;
+			this.bytes = bytes;
+		}
+	}
+
+	ResultCache(long maxBytes, double heapPerFileByte) {
+		this.maxBytes = Math.max(0, maxBytes);
+		this.heapPerFileByte = heapPerFileByte;
+	}
+
+	boolean isEnabled() {
+		return maxBytes > 0;
+	}
+
+	// a copy of the cached result, null on a miss
+	InfoTable get(FileKey file, String parameters) {
+		if (!isEnabled()) {
+			return null;
+		}
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(new CacheKey(file, parameters));
+			if (entry == null) {
+				misses++;
+				return null;
+			}
+			hits++;
+		}
+		return entry.result.clone();
+	}
+
+	// keeps a copy, so the caller may go on to change result
+	void put(FileKey file, String parameters, InfoTable result) {
+		long size = Math.max(1, (long) (file.size * heapPerFileByte));
+		if (!isEnabled() || size > maxBytes) {
+			return;
+		}
+		Entry entry = new Entry(result.clone(), size);
+		synchronized (this) {
+			Entry previous = entries.put(new CacheKey(file, parameters), entry);
+			if (previous != null) {
+				bytes -= previous.bytes;
+			}
+			bytes += size;
+			Iterator<Map.Entry<CacheKey, Entry>> eldest = entries.entrySet().iterator();
+			while (bytes > maxBytes && eldest.hasNext()) {
+				bytes -= eldest.next().getValue().bytes;
+				eldest.remove();
+				evictions++;
+			}
+		}
+	}
+
+	synchronized void clear() {
+		entries.clear();
+		bytes = 0;
+	}
+
+	synchronized long getHits() {
+		return hits;
+	}
+
+	synchronized long getMisses() {
+		return misses;
+	}
+
+	synchronized long getEvictions() {
+		return evictions;
+	}
+
+	synchronized int getEntries() {
+		return entries.size();
+	}
+
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	long getMaxBytes() {
+		return maxBytes;
+	}
+}
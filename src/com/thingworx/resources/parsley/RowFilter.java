@@ -0,0 +1,410 @@
+package com.thingworx.resources.parsley;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+
+// a row filter expression, tested against the raw text of a row so rows that
+// fail it are dropped before any value is converted. The grammar is
+//
+//   expression := and (OR and)*
+//   and        := term (AND term)*
+//   term       := NOT term | '(' expression ')' | field operator literal
+//   operator   := = == != <> < <= > >=
+//   literal    := 'text' | "text" | number | true | false
+//
+// Numeric fields, and any field compared with a number, compare as numbers;
+// DATETIME fields compare as dates in the parse's date format; everything else
+// compares as text. A value that is empty or doesn't convert fails the comparison.
+// The field names are resolved against the columns of the first row tested
+final class RowFilter {
+
+	private final String expression;
+	private final String dateFormat;
+	private final Node root;
+
+	// the tree with its fields resolved, for the column map it was resolved with
+	private volatile Bound bound;
+
+	private static final class Bound {
+		final Map<String, Integer> columnIndices;
+		final Node node;
+
+		Bound(Map<String, Integer> columnIndices, Node node) {
+			this.columnIndices = columnIndices;
+			this.node = node;
+		}
+	}
+
+	private RowFilter(String expression, String dateFormat, Node root) {
+		this.expression = expression;
+		this.dateFormat = dateFormat;
+		this.root = root;
+	}
+
+	// null when there is no expression
+	static RowFilter parse(String expression, String dateFormat) throws Exception {
+		if (expression == null || expression.trim().isEmpty()) {
+			return null;
+		}
+		Parser parser = new Parser(expression);
+		Node root = parser.expression();
+		if (parser.peek() != null) {
+			throw parser.error("Unexpected " + parser.peek().text);
+		}
+		return new RowFilter(expression, dateFormat, root);
+	}
+
+	// columnIndices maps the field names of it to their column in values
+	boolean matches(InfoTable it, Map<String, Integer> columnIndices, List<String> values) throws Exception {
+		Bound b = bound;
+		if (b == null || b.columnIndices != columnIndices) {
+			b = new Bound(columnIndices, root.bind(this, it, columnIndices));
+			bound = b;
+		}
+		return b.node.test(values);
+	}
+
+	private InvalidRequestException error(String message) {
+		return invalid(expression, message);
+	}
+
+	private static InvalidRequestException invalid(String expression, String message) {
+		return new InvalidRequestException("Invalid filter [" + expression + "] - " + message,
+				RESTAPIConstants.StatusCode.STATUS_NOT_ACCEPTABLE);
+	}
+
+	private abstract static class Node {
+		abstract boolean test(List<String> values) throws Exception;
+
+		abstract Node bind(RowFilter filter, InfoTable it, Map<String, Integer> columnIndices) throws Exception;
+	}
+
+	private static final class And extends Node {
+		final Node[] terms;
+
+		And(Node[] terms) {
+			this.terms = terms;
+		}
+
+		@Override
+		boolean test(List<String> values) throws Exception {
+			for (Node term : terms) {
+				if (!term.test(values)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		Node bind(RowFilter filter, InfoTable it, Map<String, Integer> columnIndices) throws Exception {
+			Node[] bound = new Node[terms.length];
+			for (int i = 0; i < terms.length; i++) {
+				bound[i] = terms[i].bind(filter, it, columnIndices);
+			}
+			return new And(bound);
+		}
+	}
+
+	private static final class Or extends Node {
+		final Node[] terms;
+
+		Or(Node[] terms) {
+			this.terms = terms;
+		}
+
+		@Override
+		boolean test(List<String> values) throws Exception {
+			for (Node term : terms) {
+				if (term.test(values)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		Node bind(RowFilter filter, InfoTable it, Map<String, Integer> columnIndices) throws Exception {
+			Node[] bound = new Node[terms.length];
+			for (int i = 0; i < terms.length; i++) {
+				bound[i] = terms[i].bind(filter, it, columnIndices);
+			}
+			return new Or(bound);
+		}
+	}
+
+	private static final class Not extends Node {
+		final Node term;
+
+		Not(Node term) {
+			this.term = term;
+		}
+
+		@Override
+		boolean test(List<String> values) throws Exception {
+			return !term.test(values);
+		}
+
+		@Override
+		Node bind(RowFilter filter, InfoTable it, Map<String, Integer> columnIndices) throws Exception {
+			return new Not(term.bind(filter, it, columnIndices));
+		}
+	}
+
+	private static final int TEXT = 0;
+	private static final int NUMBER = 1;
+	private static final int DATE = 2;
+
+	private static final class Compare extends Node {
+		final String field;
+		final String operator;
+		final String literal;
+		final boolean numericLiteral;
+
+		// set once bound
+		int column = -1;
+		int kind;
+		double number;
+		long date;
+		DateParser dates;
+
+		Compare(String field, String operator, String literal, boolean numericLiteral) {
+			this.field = field;
+			this.operator = operator;
+			this.literal = literal;
+			this.numericLiteral = numericLiteral;
+		}
+
+		@Override
+		Node bind(RowFilter filter, InfoTable it, Map<String, Integer> columnIndices) throws Exception {
+			Integer index = columnIndices.get(field);
+			FieldDefinition definition = it.getDataShape().getFieldDefinition(field);
+			if (index == null || index < 0 || definition == null) {
+				throw filter.error("Unknown field " + field);
+			}
+			Compare bound = new Compare(field, operator, literal, numericLiteral);
+			bound.column = index;
+			BaseTypes type = definition.getBaseType();
+			if (type == BaseTypes.DATETIME && filter.dateFormat != null && !filter.dateFormat.isEmpty()) {
+				bound.kind = DATE;
+				try {
+					bound.dates = DateParser.forFormat(filter.dateFormat);
+					bound.date = numericLiteral ? (long) Double.parseDouble(literal)
+							: bound.dates.parse(literal).getMillis();
+				} catch (Exception e) {
+					throw filter.error(literal + " is not a date in the format " + filter.dateFormat);
+				}
+			} else if (numericLiteral || type == BaseTypes.NUMBER || type == BaseTypes.INTEGER
+					|| type == BaseTypes.LONG) {
+				if (!numericLiteral) {
+					throw filter.error(field + " is a number and can't be compared with '" + literal + "'");
+				}
+				bound.kind = NUMBER;
+				bound.number = Double.parseDouble(literal);
+			} else {
+				bound.kind = TEXT;
+			}
+			return bound;
+		}
+
+		@Override
+		boolean test(List<String> values) throws Exception {
+			String value = column < values.size() ? values.get(column) : null;
+			if (value == null || value.isEmpty()) {
+				return false;
+			}
+			int order;
+			if (kind == NUMBER) {
+				if (!TypeClassifier.isDecimal(value)) {
+					return false;
+				}
+				order = Double.compare(Double.parseDouble(value), number);
+			} else if (kind == DATE) {
+				if (!dates.isDate(value)) {
+					return false;
+				}
+				order = Long.compare(dates.parse(value).getMillis(), date);
+			} else {
+				order = value.compareTo(literal);
+			}
+			if (operator.equals("=") || operator.equals("==")) {
+				return order == 0;
+			}
+			if (operator.equals("!=") || operator.equals("<>")) {
+				return order != 0;
+			}
+			if (operator.equals("<")) {
+				return order < 0;
+			}
+			if (operator.equals("<=")) {
+				return order <= 0;
+			}
+			if (operator.equals(">")) {
+				return order > 0;
+			}
+			return order >= 0;
+		}
+	}
+
+	private static final class Token {
+		// 'f' field or keyword, 'n' number, 's' quoted text, 'o' operator, '(' or ')'
+		final char type;
+		final String text;
+		final int position;
+
+		Token(char type, String text, int position) {
+			this.type = type;
+			this.text = text;
+			this.position = position;
+		}
+
+		boolean isKeyword(String keyword) {
+			return type == 'f' && text.equalsIgnoreCase(keyword);
+		}
+	}
+
+	private static final class Parser {
+		private final String expression;
+		private final ArrayList<Token> tokens = new ArrayList<Token>();
+		private int next;
+
+		Parser(String expression) throws Exception {
+			this.expression = expression;
+			tokenize();
+		}
+
+		Token peek() {
+			return next < tokens.size() ? tokens.get(next) : null;
+		}
+
+		InvalidRequestException error(String message) {
+			return invalid(expression, message);
+		}
+
+		Node expression() throws Exception {
+			ArrayList<Node> terms = new ArrayList<Node>();
+			terms.add(and());
+			while (peek() != null && peek().isKeyword("OR")) {
+				next++;
+				terms.add(and());
+			}
+			return terms.size() == 1 ? terms.get(0) : new Or(terms.toArray(new Node[terms.size()]));
+		}
+
+		private Node and() throws Exception {
+			ArrayList<Node> terms = new ArrayList<Node>();
+			terms.add(term());
+			while (peek() != null && peek().isKeyword("AND")) {
+				next++;
+				terms.add(term());
+			}
+			return terms.size() == 1 ? terms.get(0) : new And(terms.toArray(new Node[terms.size()]));
+		}
+
+		private Node term() throws Exception {
+			Token token = take("a field, NOT or (");
+			if (token.isKeyword("NOT")) {
+				return new Not(term());
+			}
+			if (token.type == '(') {
+				Node inner = expression();
+				if (take(")").type != ')') {
+					throw error("Expected ) at " + tokens.get(next - 1).position);
+				}
+				return inner;
+			}
+			if (token.type != 'f') {
+				throw error("Expected a field at " + token.position);
+			}
+			Token operator = take("an operator");
+			if (operator.type != 'o') {
+				throw error("Expected an operator at " + operator.position);
+			}
+			Token literal = take("a value");
+			if (literal.type == 'n' || literal.type == 's') {
+				return new Compare(token.text, operator.text, literal.text, literal.type == 'n');
+			}
+			if (literal.isKeyword("true") || literal.isKeyword("false")) {
+				return new Compare(token.text, operator.text, literal.text.toLowerCase(), false);
+			}
+			throw error("Expected a value at " + literal.position);
+		}
+
+		private Token take(String expected) throws Exception {
+			if (next == tokens.size()) {
+				throw error("Expected " + expected + " at the end");
+			}
+			return tokens.get(next++);
+		}
+
+		private void tokenize() throws Exception {
+			int length = expression.length();
+			int i = 0;
+			while (i < length) {
+				char c = expression.charAt(i);
+				int start = i;
+				if (Character.isWhitespace(c)) {
+					i++;
+				} else if (c == '(' || c == ')') {
+					tokens.add(new Token(c, String.valueOf(c), start));
+					i++;
+				} else if (c == '\'' || c == '"') {
+					// a doubled quote stands for the quote itself
+					StringBuilder text = new StringBuilder();
+					i++;
+					while (true) {
+						if (i == length) {
+							throw error("Unterminated text at " + start);
+						}
+						char d = expression.charAt(i++);
+						if (d == c) {
+							if (i < length && expression.charAt(i) == c) {
+								i++;
+							} else {
+								break;
+							}
+						}
+						text.append(d);
+					}
+					tokens.add(new Token('s', text.toString(), start));
+				} else if ("=!<>".indexOf(c) >= 0) {
+					i++;
+					if (i < length && (expression.charAt(i) == '=' || (c == '<' && expression.charAt(i) == '>'))) {
+						i++;
+					}
+					String operator = expression.substring(start, i);
+					if (operator.equals("!")) {
+						throw error("Expected != at " + start);
+					}
+					tokens.add(new Token('o', operator, start));
+				} else if (Character.isDigit(c) || c == '-' || c == '+' || c == '.') {
+					i++;
+					while (i < length && (Character.isLetterOrDigit(expression.charAt(i))
+							|| ".+-".indexOf(expression.charAt(i)) >= 0)) {
+						i++;
+					}
+					String number = expression.substring(start, i);
+					if (!TypeClassifier.isDecimal(number)) {
+						throw error("Invalid number " + number + " at " + start);
+					}
+					tokens.add(new Token('n', number, start));
+				} else if (Character.isLetter(c) || c == '_') {
+					while (i < length
+							&& (Character.isLetterOrDigit(expression.charAt(i)) || expression.charAt(i) == '_')) {
+						i++;
+					}
+					tokens.add(new Token('f', expression.substring(start, i), start));
+				} else {
+					throw error("Unexpected " + c + " at " + start);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package com.thingworx.resources.parsley;
+
+import com.thingworx.types.collections.ValueCollection;
+
+// receives converted rows in file order as they are produced
+interface RowSink {
+	void addRow(ValueCollection values) throws Exception;
+}
@@ -0,0 +1,289 @@
+package com.thingworx.resources.parsley;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+
+import org.joda.time.DateTime;
+
+import com.thingworx.common.RESTAPIConstants;
+import com.thingworx.common.exceptions.InvalidRequestException;
+import com.thingworx.metadata.DataShapeDefinition;
+import com.thingworx.metadata.FieldDefinition;
+import com.thingworx.types.BaseTypes;
+import com.thingworx.types.InfoTable;
+import com.thingworx.types.collections.ValueCollection;
+import com.thingworx.types.primitives.IPrimitiveType;
+import com.thingworx.types.primitives.structs.Location;
+
+// the converted rows of a parse, kept in memory up to maxBytes and written to a
+// temp file after that. Rows on disk are stored field by field in ordinal order as
+// a type byte followed by the value, so they come back as the same primitives they
+// went in as. Pages are read back by seeking to the nearest indexed row.
+//
+// Rows are added by the one thread running the parse and read once it is done
+final class RowSpill implements RowSink {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	// rows between two entries of the file offset index
+	private static final int INDEX_INTERVAL = 256;
+	private static final BaseTypes[] TYPES = BaseTypes.values();
+
+	private final InfoTable fields;
+	private final long maxBytes;
+	private final File directory;
+
+	private final ArrayList<ValueCollection> memory = new ArrayList<ValueCollection>();
+	private long memoryBytes;
+
+	private File file;
+	private CountingOutputStream counter;
+	private DataOutputStream out;
+	private long fileRows;
+	// file offset of every INDEX_INTERVAL-th row in the file
+	private final ArrayList<Long> index = new ArrayList<Long>();
+	private boolean deleted;
+
+	// taken from fields when the first row comes in, the fields are only settled by then
+	private DataShapeDefinition shape;
+	private String[] names;
+
+	// rows are converted against the fields of fields. directory is null for the
+	// default temp directory
+	RowSpill(InfoTable fields, long maxBytes, File directory) {
+		this.fields = fields;
+		this.maxBytes = maxBytes;
+		this.directory = directory;
+	}
+
+	private void settleFields() {
+		if (shape == null) {
+			shape = fields.getDataShape().clone();
+			ArrayList<FieldDefinition> ordered = shape.getFields().getOrderedFieldsByOrdinal();
+			names = new String[ordered.size()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = ordered.get(i).getName();
+			}
+		}
+	}
+
+	@Override
+	public void addRow(ValueCollection values) throws Exception {
+		settleFields();
+		if (out == null) {
+			long bytes = estimate(values);
+			if (memoryBytes + bytes <= maxBytes) {
+				memory.add(values);
+				memoryBytes += bytes;
+				return;
+			}
+			file = File.createTempFile("parsley-", ".rows", directory);
+			file.deleteOnExit();
+			counter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+			out = new DataOutputStream(counter);
+		}
+		if (fileRows % INDEX_INTERVAL == 0) {
+			index.add(counter.count);
+		}
+		write(values);
+		fileRows++;
+	}
+
+	// the rows were all added, flushes what is still buffered for the file
+	void finish() throws IOException {
+		if (out != null) {
+			out.close();
+		}
+	}
+
+	boolean isSpilled() {
+		return file != null;
+	}
+
+	long getRowCount() {
+		return memory.size() + fileRows;
+	}
+
+	// up to limit rows from offset on, limit 0 for all of them
+	synchronized InfoTable read(long offset, long limit) throws Exception {
+		if (deleted) {
+			throw new InvalidRequestException("The Rows Were Already Released",
+					RESTAPIConstants.StatusCode.STATUS_NOT_FOUND);
+		}
+		settleFields();
+		InfoTable it = new InfoTable(shape.clone());
+		long end = limit > 0 ? Math.min(getRowCount(), offset + limit) : getRowCount();
+		long row = Math.max(0, offset);
+		for (; row < end && row < memory.size(); row++) {
+			it.addRow(memory.get((int) row));
+		}
+		if (row >= end) {
+			return it;
+		}
+		long fileRow = row - memory.size();
+		int entry = (int) (fileRow / INDEX_INTERVAL);
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			raf.seek(index.get(entry));
+			DataInputStream in = new DataInputStream(
+					new BufferedInputStream(Channels.newInputStream(raf.getChannel()), 64 * 1024));
+			for (long skip = fileRow - (long) entry * INDEX_INTERVAL; skip > 0; skip--) {
+				readRow(in);
+			}
+			for (; row < end; row++) {
+				it.addRow(readRow(in));
+			}
+		} finally {
+			raf.close();
+		}
+		return it;
+	}
+
+	// waits for a page that is being read, the last page can be fetched while an earlier
+	// one still is
+	synchronized void delete() {
+		deleted = true;
+		try {
+			finish();
+		} catch (IOException e) {
+		}
+		if (file != null) {
+			file.delete();
+		}
+		memory.clear();
+	}
+
+	// rough heap use of a converted row: the collection, an entry and primitive per
+	// value and the characters of text values
+	private static long estimate(ValueCollection values) {
+		long bytes = 64;
+		for (Object value : values.values()) {
+			bytes += 80;
+			Object content = value instanceof IPrimitiveType ? ((IPrimitiveType<?, ?>) value).getValue() : null;
+			if (content instanceof String) {
+				bytes += 40 + 2L * ((String) content).length();
+			}
+		}
+		return bytes;
+	}
+
+	private void write(ValueCollection values) throws Exception {
+		for (String name : names) {
+			IPrimitiveType<?, ?> primitive = values.get(name);
+			Object value = primitive != null ? primitive.getValue() : null;
+			if (value == null) {
+				out.writeByte(0);
+				continue;
+			}
+			BaseTypes type = primitive.getBaseType();
+			out.writeByte(type.ordinal() + 1);
+			switch (type) {
+			case NUMBER:
+				out.writeDouble(((Number) value).doubleValue());
+				break;
+			case INTEGER:
+				out.writeInt(((Number) value).intValue());
+				break;
+			case LONG:
+				out.writeLong(((Number) value).longValue());
+				break;
+			case BOOLEAN:
+				out.writeBoolean((Boolean) value);
+				break;
+			case DATETIME:
+				out.writeLong(((DateTime) value).getMillis());
+				break;
+			case LOCATION:
+				Location location = (Location) value;
+				writeDouble(location.getLatitude());
+				writeDouble(location.getLongitude());
+				writeDouble(location.getElevation());
+				break;
+			default:
+				byte[] text = String.valueOf(value).getBytes(UTF8);
+				out.writeInt(text.length);
+				out.write(text);
+				break;
+			}
+		}
+	}
+
+	private void writeDouble(Double value) throws IOException {
+		out.writeDouble(value != null ? value : Double.NaN);
+	}
+
+	private ValueCollection readRow(DataInputStream in) throws Exception {
+		ValueCollection values = new ValueCollection();
+		for (String name : names) {
+			int tag = in.readUnsignedByte();
+			if (tag == 0) {
+				continue;
+			}
+			BaseTypes type = TYPES[tag - 1];
+			Object value;
+			switch (type) {
+			case NUMBER:
+				value = in.readDouble();
+				break;
+			case INTEGER:
+				value = in.readInt();
+				break;
+			case LONG:
+				value = in.readLong();
+				break;
+			case BOOLEAN:
+				value = in.readBoolean();
+				break;
+			case DATETIME:
+				value = new DateTime(in.readLong());
+				break;
+			case LOCATION:
+				value = new Location(readDouble(in), readDouble(in), readDouble(in));
+				break;
+			default:
+				byte[] text = new byte[in.readInt()];
+				in.readFully(text);
+				value = new String(text, UTF8);
+				break;
+			}
+			values.put(name, BaseTypes.ConvertToPrimitive(value, type));
+		}
+		return values;
+	}
+
+	private static Double readDouble(DataInputStream in) throws IOException {
+		double value = in.readDouble();
+		return Double.isNaN(value) ? null : value;
+	}
+
+	// DataOutputStream.size() stops counting at 2GB
+	private static final class CountingOutputStream extends FilterOutputStream {
+		long count;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			count += len;
+		}
+	}
+}
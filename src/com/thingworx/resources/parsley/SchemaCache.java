@@ -0,0 +1,34 @@
+package com.thingworx.resources.parsley;
+
+import com.thingworx.metadata.DataShapeDefinition;
+
+// data shapes inferred from repository files, keyed on the version of the file
+// and the settings that change what gets inferred. A layout that is parsed over
+// and over is only inferred once per version of the file. Shapes inferred from a
+// sample are kept apart from full scans, only a full scan is safe to convert the
+// whole file against
+final class SchemaCache {
+
+	private final LRUCache<CacheKey, DataShapeDefinition> shapes;
+
+	SchemaCache(int maxEntries) {
+		shapes = new LRUCache<CacheKey, DataShapeDefinition>(maxEntries);
+	}
+
+	// a copy the caller is free to change, null if the file hasn't been inferred
+	DataShapeDefinition get(FileKey file, String settings) {
+		DataShapeDefinition shape = shapes.get(new CacheKey(file, settings));
+		return shape != null ? shape.clone() : null;
+	}
+
+	void put(FileKey file, String settings, DataShapeDefinition shape) {
+		shapes.put(new CacheKey(file, settings), shape.clone());
+	}
+
+	// options are the format specific settings, e.g. the delimiters or sheet name.
+	// sampleRows is 0 for a full scan
+	static String settings(String format, ParseContext context, String options, int sampleRows) {
+		return format + "|" + context.hasHeader + "|" + context.customHeaders + "|" + context.columns + "|"
+				+ context.dateFormat + "|" + context.minDateMilliseconds + "|" + options + "|" + sampleRows;
+	}
+}
@@ -0,0 +1,235 @@
+package com.thingworx.resources.parsley;
+
+import com.thingworx.types.BaseTypes;
+
+// works out the base type of a value by scanning its characters, so classifying
+// a value never throws. The date format comes from the DateParser cache and the
+// classifier is immutable, so the parallel parse tasks can share it
+final class TypeClassifier {
+
+	private final String dateFormat;
+	private final long minDateMilliseconds;
+	// null when dates are RAW or the format can't be compiled
+	private final DateParser dateParser;
+
+	TypeClassifier(String dateFormat, long minDateMilliseconds) {
+		this.dateFormat = dateFormat;
+		this.minDateMilliseconds = minDateMilliseconds;
+		this.dateParser = isRaw() ? null : compile(dateFormat);
+	}
+
+	private boolean isRaw() {
+		return "RAW".equals(dateFormat);
+	}
+
+	private static DateParser compile(String format) {
+		if (format == null || format.isEmpty()) {
+			return null;
+		}
+		try {
+			return DateParser.forFormat(format);
+		} catch (IllegalArgumentException e) {
+			// nothing parses against an invalid pattern
+			return null;
+		}
+	}
+
+	// same order of checks as the regex based version: date, number, location, boolean
+	BaseTypes classify(String value) {
+		if (value == null) {
+			return BaseTypes.STRING;
+		}
+		if (isDate(value)) {
+			return BaseTypes.DATETIME;
+		}
+		int number = number(value);
+		if (number == INTEGER) {
+			return BaseTypes.INTEGER;
+		}
+		if (number == DECIMAL) {
+			return BaseTypes.NUMBER;
+		}
+		if (isLocation(value)) {
+			return BaseTypes.LOCATION;
+		}
+		if (value.equals("true") || value.equals("false")) {
+			return BaseTypes.BOOLEAN;
+		}
+		return BaseTypes.STRING;
+	}
+
+	// RAW dates are whole numbers of milliseconds at or after the minimum, anything
+	// else has to parse completely against the date format
+	boolean isDate(Object value) {
+		if (value == null) {
+			return false;
+		}
+		if (isRaw()) {
+			double v;
+			if (value instanceof Number) {
+				v = ((Number) value).doubleValue();
+			} else {
+				String text = value.toString();
+				if (!isDecimal(text)) {
+					return false;
+				}
+				v = Double.parseDouble(text);
+			}
+			return v % 1 == 0 && v >= minDateMilliseconds;
+		}
+		if (dateParser == null || !(value instanceof String)) {
+			return false;
+		}
+		return dateParser.isDate((String) value);
+	}
+
+	private static final int NOT_A_NUMBER = 0;
+	private static final int INTEGER = 1;
+	private static final int DECIMAL = 2;
+
+	// [-+]?\d*\.?\d+ - INTEGER when there's no decimal point and it fits in an int
+	static int number(String value) {
+		int length = value.length();
+		int i = 0;
+		boolean negative = false;
+		if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+			negative = value.charAt(i) == '-';
+			i++;
+		}
+		int digitsStart = i;
+		long magnitude = 0;
+		while (i < length && isDigit(value.charAt(i))) {
+			// only needs to be right while it could still be an int
+			if (magnitude <= Integer.MAX_VALUE + 1L) {
+				magnitude = magnitude * 10 + (value.charAt(i) - '0');
+			}
+			i++;
+		}
+		if (i == length) {
+			if (i == digitsStart) {
+				return NOT_A_NUMBER;
+			}
+			return magnitude <= (negative ? Integer.MAX_VALUE + 1L : Integer.MAX_VALUE) ? INTEGER : DECIMAL;
+		}
+		if (value.charAt(i) != '.') {
+			return NOT_A_NUMBER;
+		}
+		i++;
+		int fractionStart = i;
+		while (i < length && isDigit(value.charAt(i))) {
+			i++;
+		}
+		return i == length && i > fractionStart ? DECIMAL : NOT_A_NUMBER;
+	}
+
+	// what Integer.parseInt accepts
+	static boolean isInteger(String value) {
+		return number(value) == INTEGER;
+	}
+
+	// the subset of Double.parseDouble's input that decimal numbers use:
+	// [-+]?(\d+\.?\d*|\.\d+)([eE][-+]?\d+)?[fFdD]? with surrounding whitespace
+	static boolean isDecimal(String value) {
+		int length = value.length();
+		while (length > 0 && value.charAt(length - 1) <= ' ') {
+			length--;
+		}
+		int i = 0;
+		while (i < length && value.charAt(i) <= ' ') {
+			i++;
+		}
+		if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+			i++;
+		}
+		int digits = 0;
+		while (i < length && isDigit(value.charAt(i))) {
+			i++;
+			digits++;
+		}
+		if (i < length && value.charAt(i) == '.') {
+			i++;
+			while (i < length && isDigit(value.charAt(i))) {
+				i++;
+				digits++;
+			}
+		}
+		if (digits == 0) {
+			return false;
+		}
+		if (i < length && (value.charAt(i) == 'e' || value.charAt(i) == 'E')) {
+			i++;
+			if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+				i++;
+			}
+			int exponentStart = i;
+			while (i < length && isDigit(value.charAt(i))) {
+				i++;
+			}
+			if (i == exponentStart) {
+				return false;
+			}
+		}
+		if (i < length && "fFdD".indexOf(value.charAt(i)) >= 0) {
+			i++;
+		}
+		return i == length;
+	}
+
+	// latitude,longitude with latitude in -90..90 and longitude in -180..180 written
+	// the way the location regex allows: no leading zeros and only zeros after 90.
+	// and 180.
+	static boolean isLocation(String value) {
+		int i = coordinate(value, 0, 90);
+		if (i < 0 || i == value.length() || value.charAt(i) != ',') {
+			return false;
+		}
+		i++;
+		while (i < value.length() && isWhitespace(value.charAt(i))) {
+			i++;
+		}
+		return coordinate(value, i, 180) == value.length();
+	}
+
+	// returns the index after the coordinate starting at i, or -1
+	private static int coordinate(String value, int i, int limit) {
+		int length = value.length();
+		if (i < length && (value.charAt(i) == '-' || value.charAt(i) == '+')) {
+			i++;
+		}
+		int start = i;
+		int whole = 0;
+		while (i < length && isDigit(value.charAt(i)) && i - start < 4) {
+			whole = whole * 10 + (value.charAt(i) - '0');
+			i++;
+		}
+		int digits = i - start;
+		if (digits == 0 || (digits > 1 && value.charAt(start) == '0') || whole > limit
+				|| digits > String.valueOf(limit).length()) {
+			return -1;
+		}
+		boolean fractionZero = true;
+		if (i < length && value.charAt(i) == '.') {
+			int fractionStart = ++i;
+			while (i < length && isDigit(value.charAt(i))) {
+				fractionZero &= value.charAt(i) == '0';
+				i++;
+			}
+			if (i == fractionStart) {
+				return -1;
+			}
+		}
+		if (whole == limit && !fractionZero) {
+			return -1;
+		}
+		return i;
+	}
+
+	private static boolean isDigit(char c) {
+		return c >= '0' && c <= '9';
+	}
+
+	// \s in a regex
+	private static boolean isWhitespace(char c) {
+		return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+	}
+}